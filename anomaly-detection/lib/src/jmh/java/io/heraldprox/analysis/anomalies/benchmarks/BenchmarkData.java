@@ -0,0 +1,44 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.benchmarks;
+
+import io.heraldprox.analysis.anomalies.synthetic.TestRunGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Writes a generated test (See TestRunGenerator) for the benchmarks to read, sized by rows
+ * per device rather than duration.
+ */
+public class BenchmarkData {
+    public static final long START = TestRunGenerator.DEFAULT_START;
+    public static final long RSSI_INTERVAL_MILLIS = 4000;
+
+    /**
+     * @return A new temporary folder holding one folder per device
+     */
+    public static File write(int devices, int rowsPerDevice) throws IOException {
+        File test = Files.createTempDirectory("herald-benchmark").toFile();
+        TestRunGenerator generator = new TestRunGenerator();
+        generator.setDevices(devices);
+        generator.setRssiIntervalMillis(RSSI_INTERVAL_MILLIS);
+        generator.setDurationMillis(durationMillis(devices, rowsPerDevice));
+        generator.write(test);
+        return test;
+    }
+
+    /**
+     * @return How long a test runs for each device to log about rowsPerDevice RSSI readings
+     */
+    public static long durationMillis(int devices, int rowsPerDevice) {
+        return rowsPerDevice * RSSI_INTERVAL_MILLIS / Math.max(1, devices - 1);
+    }
+
+    public static void delete(File file) {
+        TestRunGenerator.delete(file);
+    }
+}
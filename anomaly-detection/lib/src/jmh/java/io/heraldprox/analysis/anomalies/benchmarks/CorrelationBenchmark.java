@@ -0,0 +1,71 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.benchmarks;
+
+import io.heraldprox.analysis.anomalies.Correlator;
+import io.heraldprox.analysis.anomalies.DeviceAddressIndex;
+import io.heraldprox.analysis.anomalies.TestFolder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Links every device's addresses to the devices using them (Correlator.initOsAddresses),
+ * over logs that have already been parsed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CorrelationBenchmark {
+    @Param({"3", "10", "30"})
+    public int devices;
+
+    @Param({"10000", "100000"})
+    public int rowsPerDevice;
+
+    File test;
+    TestFolder testFolder;
+
+    @Setup(Level.Trial)
+    public void write() throws IOException {
+        test = BenchmarkData.write(devices, rowsPerDevice);
+    }
+
+    /**
+     * A new Correlator only reads addresses once, so each call gets a newly parsed test.
+     */
+    @Setup(Level.Invocation)
+    public void load() {
+        testFolder = new TestFolder(test);
+        testFolder.load(1, null);
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() {
+        testFolder.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        BenchmarkData.delete(test);
+    }
+
+    @Benchmark
+    public DeviceAddressIndex correlate() {
+        return new Correlator(testFolder.getDeviceFolders()).getAddressIndex();
+    }
+}
@@ -0,0 +1,87 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.benchmarks;
+
+import io.heraldprox.analysis.anomalies.Anomaly;
+import io.heraldprox.analysis.anomalies.Correlator;
+import io.heraldprox.analysis.anomalies.TestFolder;
+import io.heraldprox.analysis.anomalies.detection.DetectionRateDetection;
+import io.heraldprox.analysis.anomalies.detection.RssiGapDetection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end detection, as the command line runs it: read the test, link addresses, then
+ * find RSSI gaps over the whole of it. scan() alone measures just the detector's pass over
+ * logs already read, and detectionRate() the detection rate detector's pass over RSSI series
+ * already built.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DetectionBenchmark {
+    @Param({"3", "10", "30"})
+    public int devices;
+
+    @Param({"10000", "100000"})
+    public int rowsPerDevice;
+
+    File test;
+    Date startDate;
+    Date endDate;
+    TestFolder loaded;
+    Correlator correlator;
+
+    @Setup(Level.Trial)
+    public void write() throws IOException {
+        test = BenchmarkData.write(devices, rowsPerDevice);
+        startDate = new Date(BenchmarkData.START);
+        endDate = new Date(BenchmarkData.START + BenchmarkData.durationMillis(devices, rowsPerDevice));
+        loaded = new TestFolder(test);
+        loaded.load(1, null);
+        correlator = new Correlator(loaded.getDeviceFolders());
+        correlator.getAddressIndex();
+        correlator.getRssiSeries();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        loaded.close();
+        BenchmarkData.delete(test);
+    }
+
+    @Benchmark
+    public Collection<Anomaly> endToEnd() {
+        try (TestFolder testFolder = new TestFolder(test)) {
+            testFolder.load(1, null);
+            return new RssiGapDetection(new Correlator(testFolder.getDeviceFolders()), 20 * 60 * 1000).detect(testFolder, startDate, endDate);
+        }
+    }
+
+    @Benchmark
+    public Collection<Anomaly> scan() {
+        return new RssiGapDetection(correlator, 20 * 60 * 1000).detect(loaded, startDate, endDate);
+    }
+
+    @Benchmark
+    public Collection<Anomaly> detectionRate() {
+        return new DetectionRateDetection(correlator, 10 * 60 * 1000, 0.5).detect(loaded, startDate, endDate);
+    }
+}
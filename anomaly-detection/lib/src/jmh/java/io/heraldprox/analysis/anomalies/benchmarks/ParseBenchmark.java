@@ -0,0 +1,88 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.benchmarks;
+
+import io.heraldprox.analysis.anomalies.SymbolTable;
+import io.heraldprox.analysis.anomalies.sources.ContactLogSource;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses every device's contacts.csv, as ContactLogSource.initialise does on first use.
+ * rows and bytes are reported per second alongside the parse rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParseBenchmark {
+    @Param({"3", "10"})
+    public int devices;
+
+    @Param({"10000", "100000"})
+    public int rowsPerDevice;
+
+    File test;
+    File[] contacts;
+
+    @Setup(Level.Trial)
+    public void write() throws IOException {
+        test = BenchmarkData.write(devices, rowsPerDevice);
+        File[] folders = test.listFiles(File::isDirectory);
+        contacts = new File[folders.length];
+        for (int i = 0;i < folders.length;++i) {
+            contacts[i] = new File(folders[i], "contacts.csv");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        BenchmarkData.delete(test);
+    }
+
+    /**
+     * Rows and bytes parsed, reported by JMH as rates.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Parsed {
+        public long rows;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rows = 0;
+            bytes = 0;
+        }
+    }
+
+    @Benchmark
+    public long parse(Parsed parsed) {
+        // As DeviceFolder does, all devices of a test share one dictionary
+        SymbolTable symbols = new SymbolTable();
+        long rows = 0;
+        for (File file : contacts) {
+            try (ContactLogSource source = new ContactLogSource(file, symbols)) {
+                rows += source.summarise().eventCount;
+            }
+            parsed.bytes += file.length();
+        }
+        parsed.rows += rows;
+        return rows;
+    }
+}
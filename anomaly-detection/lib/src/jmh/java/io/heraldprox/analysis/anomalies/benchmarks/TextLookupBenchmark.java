@@ -0,0 +1,67 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.benchmarks;
+
+import io.heraldprox.analysis.anomalies.sources.ContactLogSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up the text of events at random lines of one parsed contacts.csv, as describing
+ * an anomaly's evidence does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TextLookupBenchmark {
+    @Param({"3", "10"})
+    public int devices;
+
+    @Param({"10000", "100000"})
+    public int rowsPerDevice;
+
+    File test;
+    ContactLogSource source;
+    // Random, so that lookups are not all served from the same cache lines
+    final long[] lines = new long[4096];
+    int next = 0;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        test = BenchmarkData.write(devices, rowsPerDevice);
+        source = new ContactLogSource(new File(test.listFiles(File::isDirectory)[0], "contacts.csv"));
+        long rows = source.summarise().eventCount;
+        Random random = new Random(42);
+        for (int i = 0;i < lines.length;++i) {
+            lines[i] = 1 + (long)random.nextInt((int)rows);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        source.close();
+        BenchmarkData.delete(test);
+    }
+
+    @Benchmark
+    public String text() {
+        next = (next + 1) & (lines.length - 1);
+        return source.text(lines[next]);
+    }
+}
@@ -1,4 +1,4 @@
-//  Copyright 2022 Herald Project Contributors
+//  Copyright 2022-2023 Herald Project Contributors
 //  SPDX-License-Identifier: Apache-2.0
 //
 
@@ -12,17 +12,24 @@ public class Anomaly {
     public final Date from;
     public final Date to;
 
-    public final EventList evidence;
+    public final Evidence evidence;
 
     public final Detector detectedBy;
 
-    public Anomaly(Detector detectedBy,TestDevice receiver, TestDevice transmitter, Date from, Date to, EventList evidence) {
+    public Anomaly(Detector detectedBy,TestDevice receiver, TestDevice transmitter, Date from, Date to, Evidence evidence) {
         this.detectedBy = detectedBy;
         this.receiver = receiver;
         this.transmitter = transmitter;
         this.from = from;
         this.to = to;
-        this.evidence = evidence;
+        this.evidence = null == evidence ? Evidence.NONE : evidence;
+    }
+
+    /**
+     * Keeps references to the events in evidence, rather than the list itself.
+     */
+    public Anomaly(Detector detectedBy,TestDevice receiver, TestDevice transmitter, Date from, Date to, EventList evidence) {
+        this(detectedBy, receiver, transmitter, from, to, Evidence.of(evidence));
     }
 
     public String toString() {
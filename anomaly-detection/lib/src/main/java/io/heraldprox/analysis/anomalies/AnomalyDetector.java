@@ -1,22 +1,87 @@
-//  Copyright 2022 Herald Project Contributors
+//  Copyright 2022-2023 Herald Project Contributors
 //  SPDX-License-Identifier: Apache-2.0
 //
 
 package io.heraldprox.analysis.anomalies;
 
+import io.heraldprox.analysis.anomalies.detection.DetectionRateDetection;
 import io.heraldprox.analysis.anomalies.detection.RssiGapDetection;
+import io.heraldprox.analysis.anomalies.sinks.CountingAnomalySink;
+import io.heraldprox.analysis.anomalies.sinks.CsvAnomalySink;
+import io.heraldprox.analysis.anomalies.sinks.JsonLinesAnomalySink;
+import io.heraldprox.analysis.anomalies.sinks.TextAnomalySink;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Locale;
 import java.util.Date;
-import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 public class AnomalyDetector {
-    public static void main(String[] args) {
-        if (args.length < 3) {
-            System.err.println("Usage: AnomalyDetector ./path/to/folder '2022-11-29 09:00:00' '2022-11-29 21:00:00'");
+    /** How often to read newly logged lines, with --follow */
+    public static final long FOLLOW_POLL_MILLIS = 5000;
+
+    public static void main(String[] commandLine) {
+        // Options may appear anywhere, everything else is positional
+        List<String> options = new ArrayList<String>();
+        List<String> positional = new ArrayList<String>();
+        for (String arg : commandLine) {
+            if (arg.startsWith("--")) {
+                options.add(arg);
+            } else {
+                positional.add(arg);
+            }
+        }
+        String[] args = positional.toArray(new String[0]);
+        boolean streaming = options.contains("--streaming");
+        boolean caching = options.contains("--cache");
+        boolean following = options.contains("--follow");
+        boolean detectionRate = options.contains("--detection-rate");
+        String format = "text";
+        // Recorded if either is given, so the summary costs nothing otherwise
+        boolean metricsSummary = options.contains("--metrics");
+        String metricsFile = null;
+        for (String option : options) {
+            if (option.startsWith("--format=")) {
+                format = option.substring("--format=".length());
+            }
+            if (option.startsWith("--metrics=")) {
+                metricsFile = option.substring("--metrics=".length());
+            }
+        }
+        Metrics metrics = (metricsSummary || null != metricsFile) ? new Metrics() : Metrics.NOOP;
+        AnomalySink sink = sinkFor(format);
+        if (null == sink) {
+            System.err.println("Unknown output format '" + format + "'. Use text, csv, jsonl or count");
+            System.exit(1);
+        }
+        if (args.length < (following ? 2 : 3)) {
+            System.err.println("Usage: AnomalyDetector [--streaming] [--cache] [--format=text|csv|jsonl|count] [--detection-rate] [--metrics] [--metrics=metrics.json] ./path/to/folder '2022-11-29 09:00:00' '2022-11-29 21:00:00'");
+            System.err.println("   or: AnomalyDetector --follow [--format=text|csv|jsonl] ./path/to/folder '2022-11-29 09:00:00'");
+            System.exit(1);
+        }
+        if (following && "count".equals(format)) {
+            System.err.println("--format=count cannot be used with --follow, as following never finishes");
+            System.exit(1);
+        }
+        if (following && metrics.isEnabled()) {
+            System.err.println("--metrics cannot be used with --follow, as following never finishes");
+            System.exit(1);
+        }
+        if (following && detectionRate) {
+            System.err.println("--detection-rate cannot be used with --follow, as it reads each pair's readings once they are all logged");
+            System.exit(1);
+        }
+        if (following && streaming) {
+            System.err.println("--follow cannot be used with --streaming, as followed contacts are held in memory");
             System.exit(1);
         }
         File folder = new File(args[0]);
@@ -30,6 +95,15 @@ public class AnomalyDetector {
         }
 
         TestFolder testFolder = new TestFolder(folder);
+        testFolder.setMetrics(metrics);
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (DeviceFolder df : testFolder.getDeviceFolders()) {
+            df.setStreamingContacts(streaming);
+            df.setCaching(caching);
+            df.setFollowing(following);
+            // So that one much larger device log does not leave the other cores idle
+            df.setParallelism(cores);
+        }
 
         SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.UK);
         Date startDate = null;
@@ -42,27 +116,100 @@ public class AnomalyDetector {
             System.exit(1);
         }
         try {
-            endDate = dateFormatter.parse(args[2]);
+            if (!following) {
+                endDate = dateFormatter.parse(args[2]);
+            }
         } catch (ParseException pe) {
             System.err.println("Could not parse end date: '" + args[2] + "'");
             pe.printStackTrace();
             System.exit(1);
         }
 
-        Correlator c = new Correlator(testFolder.getDeviceFolders());
+        // Read every device's files up front, in parallel, rather than lazily one at a time
+        TestFolder.LoadReport loaded = testFolder.load(cores, (df, completed, total) -> {
+            System.err.println("Read device folder " + df.getFolder().getName() + " (" + completed + "/" + total + ")");
+        });
+        for (Map.Entry<DeviceFolder,List<Exception>> failed : loaded.failures.entrySet()) {
+            for (Exception e : failed.getValue()) {
+                System.err.println("Could not read device folder '" + failed.getKey().getFolder().getName() + "': " + e);
+            }
+        }
 
-        // TODO run all anomaly detectors
-        RssiGapDetection gap = new RssiGapDetection(c, 20 * 60 * 1000);
+        Correlator c = new Correlator(testFolder.getDeviceFolders());
+        c.setMetrics(metrics);
 
-        Collection<Anomaly> anomalies = gap.detect(testFolder, startDate, endDate);
+        // All detectors share one read of each device's events
+        DetectorEngine engine = new DetectorEngine();
+        engine.add(new RssiGapDetection(c, 20 * 60 * 1000));
+        if (detectionRate) {
+            engine.add(new DetectionRateDetection(c, 10 * 60 * 1000, 0.5));
+        }
+        engine.setParallelism(cores);
+        engine.setMetrics(metrics);
 
-        for (Anomaly an : anomalies) {
-            System.out.println(an);
+        if (following) {
+            follow(engine.follow(testFolder, startDate), sink);
+            sink.close();
+            testFolder.close();
+            System.exit(0);
         }
-        if (anomalies.size() == 0) {
+
+        // Written as found, so memory use does not grow with the number of anomalies
+        engine.detect(testFolder, startDate, endDate, sink);
+        if (sink instanceof TextAnomalySink && 0 == ((TextAnomalySink)sink).getCount()) {
+            sink.flush();
             System.out.println("No anomalies detected!");
         }
+        sink.close();
+        testFolder.close();
 
+        if (metricsSummary) {
+            System.err.print(metrics.summary());
+        }
+        if (null != metricsFile) {
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(metricsFile), StandardCharsets.UTF_8)) {
+                metrics.writeJson(out);
+            } catch (IOException ioe) {
+                System.err.println("Could not write metrics to '" + metricsFile + "': " + ioe);
+                System.exit(1);
+            }
+        }
         System.exit(0);
     }
+
+    /**
+     * @return The sink writing the format to standard output, or null if the format is not known
+     */
+    protected static AnomalySink sinkFor(String format) {
+        switch (format) {
+            case "text":
+                return new TextAnomalySink(System.out);
+            case "csv":
+                return new CsvAnomalySink(System.out);
+            case "jsonl":
+                return new JsonLinesAnomalySink(System.out);
+            case "count":
+                return new CountingAnomalySink(System.out);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Prints anomalies as they are logged, until stopped. Ongoing anomalies are printed
+     * again each time they grow.
+     */
+    protected static void follow(DetectorFollower follower, AnomalySink sink) {
+        while (true) {
+            for (Anomaly an : follower.poll()) {
+                sink.accept(an);
+            }
+            sink.flush();
+            try {
+                Thread.sleep(FOLLOW_POLL_MILLIS);
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
 }
@@ -0,0 +1,28 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+/**
+ * Receives anomalies one at a time, as detectors find them, so that they need not all be
+ * held in memory (See DetectorEngine.detect and the sinks package).
+ * 
+ * A sink is only called by one thread at a time, so need not be thread safe.
+ */
+public interface AnomalySink {
+    public void accept(Anomaly anomaly);
+
+    /**
+     * Called after a batch of anomalies (E.g. each poll when following a test), so that
+     * buffered output can be seen without waiting for close().
+     */
+    public default void flush() {
+    }
+
+    /**
+     * Called once no more anomalies will be passed, E.g. to flush output or write a summary.
+     */
+    public default void close() {
+    }
+}
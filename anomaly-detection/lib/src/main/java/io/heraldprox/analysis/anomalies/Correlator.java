@@ -1,13 +1,21 @@
-//  Copyright 2022 Herald Project Contributors
+//  Copyright 2022-2023 Herald Project Contributors
 //  SPDX-License-Identifier: Apache-2.0
 //
 
 package io.heraldprox.analysis.anomalies;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Correlates detected devices from logged data
@@ -17,11 +25,25 @@ public class Correlator {
 
     protected Hashtable<String,TestDevice> devicesByBroadcastId = new Hashtable<String,TestDevice>();
 
-    // Linking a TestDevice to its physical Mac Addresses, as detected by other devices, over time
-    protected Hashtable<TestDevice,TreeSet<String>> deviceOSAddresses = new Hashtable<TestDevice,TreeSet<String>>();
+    // All IDs and addresses are compared as codes from this (normally the TestFolder's) table
+    protected SymbolTable symbols = null;
+    // Indexed by broadcast ID code
+    protected TestDevice[] devicesByBroadcastCode = new TestDevice[0];
+
+    // Linking a TestDevice to its physical Mac Addresses (as address codes), as detected by other devices, over time
+    protected ConcurrentHashMap<TestDevice,BitSet> deviceOSAddresses = new ConcurrentHashMap<TestDevice,BitSet>();
+    // Reverse of deviceOSAddresses, built once all addresses are known
+    protected DeviceAddressIndex addressIndex = null;
+    // Number of events of each in memory source read for addresses so far (See readAppendedAddresses)
+    protected ConcurrentHashMap<EventSource,Integer> addressesReadTo = new ConcurrentHashMap<EventSource,Integer>();
 
     protected boolean processedAddresses = false;
 
+    // Built on first use (See getRssiSeries)
+    protected RssiSeriesMatrix rssiSeries = null;
+
+    protected Metrics metrics = Metrics.NOOP;
+
     public Correlator(Collection<DeviceFolder> deviceFolders) {
         folders = deviceFolders;
 
@@ -32,15 +54,66 @@ public class Correlator {
             // These for linking detections to devices
             f.setCheckingContacts(true);
 
+            if (null == symbols) {
+                symbols = f.getSymbols();
+            }
+
             TestDevice dev = f.getDevice();
 
             String bid = dev.getBroadcastId();
             if (null != bid && !"".equals(bid)) {
                 devicesByBroadcastId.put(bid,dev);
+
+                int code = symbols.intern(bid);
+                if (code >= devicesByBroadcastCode.length) {
+                    devicesByBroadcastCode = Arrays.copyOf(devicesByBroadcastCode, code + 1);
+                }
+                devicesByBroadcastCode[code] = dev;
             }
 
-            deviceOSAddresses.put(dev,new TreeSet<String>());
+            deviceOSAddresses.put(dev,new BitSet());
+        }
+        if (null == symbols) {
+            symbols = new SymbolTable();
+        }
+    }
+
+    /**
+     * Records linking addresses to devices (See Metrics). Set before first use.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    /**
+     * Converts a code from another table (E.g. a DeviceFolder not from the same TestFolder) to this Correlator's table.
+     * 
+     * @param from The table the code belongs to
+     * @param code The code to convert
+     * @return The equivalent code in getSymbols(), or -1 if the value has never been seen by this table
+     */
+    public int translate(SymbolTable from, int code) {
+        if (from == symbols || code < 0) {
+            return code;
         }
+        return symbols.code(from.symbol(code));
+    }
+
+    /**
+     * Finds the TestDevice by broadcastId code
+     * 
+     * @param broadcastCode The code of the broadcast ID within getSymbols()
+     * @return Device for the broadcastId. May return null
+     */
+    public TestDevice getDeviceByBroadcastCode(int broadcastCode) {
+        if (broadcastCode < 0 || broadcastCode >= devicesByBroadcastCode.length) {
+            return null;
+        }
+        return devicesByBroadcastCode[broadcastCode];
     }
 
     /**
@@ -84,15 +157,16 @@ public class Correlator {
             }
             for (EventGroup eg : df.getEventGroups()) {
                 if (eg.getSummary().types.contains(EventType.DetectionBroadcastIdLoggedBefore)) {
-                    // Always force starting at the beginning (in case we've already gone through it)
-                    Event next = eg.source.firstByType(EventType.DetectionBroadcastIdLoggedBefore);
+                    // Our own cursor, so this never disturbs (or is disturbed by) anything else reading this source
+                    EventCursor cursor = eg.source.query(EnumSet.of(EventType.DetectionBroadcastIdLoggedBefore), Long.MIN_VALUE, Long.MAX_VALUE);
+                    Event next = cursor.next();
                     while (null != next) {
                         // Check event
-                        if (bid.equals(next.text())) {
+                        if (bid.equals(next.data())) {
                             matching.add(next);
                         }
 
-                        next = eg.source.nextByType(EventType.DetectionBroadcastIdLoggedBefore);
+                        next = cursor.next();
                     }
                 }
             }
@@ -100,52 +174,170 @@ public class Correlator {
         return matching;
     }
 
-    protected TreeSet<String> addressSetForBid(String bid) {
-        for (TestDevice device: deviceOSAddresses.keySet()) {
-            if (device.getBroadcastId().equals(bid)) {
-                return deviceOSAddresses.get(device);
+    protected synchronized void initOsAddresses() {
+        if (!processedAddresses) {
+            processedAddresses = true;
+
+            // Only folders with at least one other device in the test are used (Don't try to detect self!)
+            List<DeviceFolder> readers = new ArrayList<DeviceFolder>();
+            for (DeviceFolder df : folders) {
+                for (DeviceFolder matchTo : folders) {
+                    if (!df.getDevice().equals(matchTo.getDevice())) {
+                        readers.add(df);
+                        break;
+                    }
+                }
             }
+
+            // One pass over each folder's read events, in parallel, merged into the shared map.
+            // The result is a union of address sets, so it does not depend upon folder order.
+            readers.parallelStream().forEach(df -> {
+                // Timed on the thread doing the work, so its CPU time and allocation are included
+                Metrics.Stage stage = metrics.stage("correlate", df.getFolder().getName());
+                Metrics.Timer timer = stage.start();
+                Map<TestDevice,BitSet> addresses = readAddresses(df);
+                timer.stop();
+                if (metrics.isEnabled()) {
+                    for (EventGroup eg : df.getEventGroups()) {
+                        if (null != eg.source.events()) {
+                            stage.addEvents(eg.source.events().countOfType(EventType.ContactRead));
+                        }
+                    }
+                }
+                for (Map.Entry<TestDevice,BitSet> found : addresses.entrySet()) {
+                    deviceOSAddresses.merge(found.getKey(), found.getValue(), (existing, more) -> {
+                        existing.or(more);
+                        return existing;
+                    });
+                }
+            });
+
+            Metrics.Timer timer = metrics.stage("correlate.index").start();
+            buildAddressIndex();
+            timer.stop();
+        }
+    }
+
+    /**
+     * Links the broadcast IDs read by one device to the addresses it read them from.
+     * 
+     * @param df The device folder whose contacts to read
+     * @return Address codes found for each test device
+     */
+    protected Map<TestDevice,BitSet> readAddresses(DeviceFolder df) {
+        HashMap<TestDevice,BitSet> found = new HashMap<TestDevice,BitSet>();
+        SymbolTable from = df.getSymbols();
+        for (EventGroup eg : df.getEventGroups()) {
+            if (null != eg.source.events()) {
+                addressesReadTo.put(eg.source, eg.source.events().size());
+            }
+            if (eg.getSummary().types.contains(EventType.ContactRead)) {
+                EventList events = eg.source.events();
+                if (null == events) {
+                    // Streaming source, so read forwards with a cursor instead
+                    EventCursor cursor = eg.source.query(EnumSet.of(EventType.ContactRead), Long.MIN_VALUE, Long.MAX_VALUE);
+                    Event next = cursor.next();
+                    while (null != next) {
+                        addAddress(found, from, next.getPointer().source, next.getPointer().startLine);
+                        next = cursor.next();
+                    }
+                    continue;
+                }
+                for (int index : eg.source.indexesOfType(EventType.ContactRead)) {
+                    addAddress(found, from, eg.source, events.startLineAt(index));
+                }
+            }
+        }
+        return found;
+    }
+
+    protected void addAddress(Map<TestDevice,BitSet> found, SymbolTable from, EventSource source, long line) {
+        TestDevice device = getDeviceByBroadcastCode(translate(from, source.dataCode(line)));
+        if (null != device) {
+            BitSet addresses = found.get(device);
+            if (null == addresses) {
+                addresses = new BitSet();
+                found.put(device, addresses);
+            }
+            addresses.set(from == symbols ? source.addressCode(line) : symbols.intern(source.address(line)));
         }
-        return null;
     }
 
-    protected void initOsAddresses() {
+    /**
+     * Links the addresses of contacts appended to each device's logs since they were last read
+     * (See EventSource.readAppended), for following a test as it is logged. Only the new events
+     * are read, and the address index is added to rather than rebuilt.
+     * 
+     * @return true if any address was newly linked to a device
+     */
+    public synchronized boolean readAppendedAddresses() {
         if (!processedAddresses) {
-            processedAddresses = true;
-            
-            // Loop over all devices
-            for (DeviceFolder matchTo : folders) {
-                TestDevice checkDevice = matchTo.getDevice();
-
-                // Loop over all (other) device folders
-                for (DeviceFolder df : folders) {
-                    // Don't try to detect self!
-                    if (!df.getDevice().equals(checkDevice)) {
-                        // Find all read events in other devices
-                        for (EventGroup eg : df.getEventGroups()) {
-                            if (eg.getSummary().types.contains(EventType.ContactRead)) {
-                                // Always force starting at the beginning (in case we've already gone through it)
-                                Event next = eg.source.firstByType(EventType.ContactRead);
-                                while (null != next) {
-                                    // Check event
-                                    String eventText = next.text();
-                                    String[] eventSplit = eventText.split("[,]",-1); // include empties
-                                    if (eventSplit.length < 3) {
-                                        throw new Error("Event split should have length 3: '" + eventText + "' for event ID: " + next.pointer.startLine + " for device: " + df.name);
-                                    }
-                                    TreeSet<String> addresses = addressSetForBid(eventSplit[2]);
-                                    if (null != addresses) {
-                                        addresses.add(eventSplit[1]);
-                                    }
-
-                                    next = eg.source.nextByType(EventType.ContactRead);
-                                }
-                            }
-                        }
+            initOsAddresses();
+            return true;
+        }
+        boolean added = false;
+        for (DeviceFolder df : folders) {
+            SymbolTable from = df.getSymbols();
+            for (EventGroup eg : df.getEventGroups()) {
+                EventList events = eg.source.events();
+                Integer readTo = addressesReadTo.get(eg.source);
+                if (null == events || null == readTo) {
+                    continue;
+                }
+                HashMap<TestDevice,BitSet> found = new HashMap<TestDevice,BitSet>();
+                for (int i = events.nextIndexOfType(EventType.ContactRead, readTo);i < events.size();i = events.nextIndexOfType(EventType.ContactRead, i + 1)) {
+                    addAddress(found, from, eg.source, events.startLineAt(i));
+                }
+                if (readTo < events.size()) {
+                    // Holds only the readings from before, so build again when next asked for
+                    rssiSeries = null;
+                }
+                addressesReadTo.put(eg.source, events.size());
+                for (Map.Entry<TestDevice,BitSet> more : found.entrySet()) {
+                    BitSet codes = more.getValue();
+                    deviceOSAddresses.get(more.getKey()).or(codes);
+                    for (int code = codes.nextSetBit(0);code >= 0;code = codes.nextSetBit(code + 1)) {
+                        added |= addressIndex.add(code, more.getKey());
                     }
                 }
             }
         }
+        return added;
+    }
+
+    protected void buildAddressIndex() {
+        TestDevice[] devicesByAddressCode = new TestDevice[symbols.size()];
+        // Folder order, so that an address seen for two devices always maps to the same one
+        for (DeviceFolder df : folders) {
+            TestDevice device = df.getDevice();
+            BitSet codes = deviceOSAddresses.get(device);
+            for (int code = codes.nextSetBit(0);code >= 0;code = codes.nextSetBit(code + 1)) {
+                if (null == devicesByAddressCode[code]) {
+                    devicesByAddressCode[code] = device;
+                }
+            }
+        }
+        addressIndex = new DeviceAddressIndex(symbols, devicesByAddressCode);
+    }
+
+    /**
+     * Returns the reverse index from OS address to TestDevice, building it if necessary.
+     * Detectors should hold on to this for their main loop.
+     */
+    public DeviceAddressIndex getAddressIndex() {
+        initOsAddresses();
+        return addressIndex;
+    }
+
+    /**
+     * Returns every RSSI reading, by receiver and transmitter, building it on first use.
+     * Detectors should call this rather than reading contacts and looking up their addresses.
+     */
+    public synchronized RssiSeriesMatrix getRssiSeries() {
+        if (null == rssiSeries) {
+            rssiSeries = RssiSeriesMatrix.build(this, folders, metrics);
+        }
+        return rssiSeries;
     }
 
     public Set<String> getOsAddressesForDevice(TestDevice device) {
@@ -155,21 +347,24 @@ public class Correlator {
             return null;
         }
 
-        return deviceOSAddresses.get(device);
+        TreeSet<String> addresses = new TreeSet<String>();
+        BitSet codes = deviceOSAddresses.get(device);
+        for (int code = codes.nextSetBit(0);code >= 0;code = codes.nextSetBit(code + 1)) {
+            addresses.add(symbols.symbol(code));
+        }
+        return addresses;
     }
 
     public TestDevice getDeviceByAddress(String osAddress) {
-        initOsAddresses();
-
-        for (TestDevice device : deviceOSAddresses.keySet()) {
-            for (String address : deviceOSAddresses.get(device)) {
-                if (address.equals(osAddress)) {
-                    return device;
-                }
-            }
-        }
+        return getDeviceByAddress(symbols.code(osAddress));
+    }
 
-        return null;
+    /**
+     * @param addressCode The code of the OS address within getSymbols()
+     * @return The device seen using this address, or null if not known
+     */
+    public TestDevice getDeviceByAddress(int addressCode) {
+        return getAddressIndex().get(addressCode);
     }
 
     public String getOsAddressesMap() {
@@ -178,7 +373,7 @@ public class Correlator {
         String map = "";
 
         for (TestDevice device : deviceOSAddresses.keySet()) {
-            for (String address : deviceOSAddresses.get(device)) {
+            for (String address : getOsAddressesForDevice(device)) {
                 map += device.getBroadcastId() + "@" + address + ",";
             }
         }
@@ -1,4 +1,4 @@
-//  Copyright 2022 Herald Project Contributors
+//  Copyright 2022-2023 Herald Project Contributors
 //  SPDX-License-Identifier: Apache-2.0
 //
 
@@ -10,5 +10,16 @@ import java.util.Collection;
 public interface Detector {
     public Collection<Anomaly> detect(TestFolder testRun,Date startBound,Date endBound);
 
+    /**
+     * Passes each anomaly to the sink rather than returning them all. By default the anomalies
+     * are still collected first; detectors that can should pass them on as they are found.
+     * Does not close the sink.
+     */
+    public default void detect(TestFolder testRun,Date startBound,Date endBound,AnomalySink sink) {
+        for (Anomaly anomaly : detect(testRun, startBound, endBound)) {
+            sink.accept(anomaly);
+        }
+    }
+
     public String describe(Anomaly anomaly);
 }
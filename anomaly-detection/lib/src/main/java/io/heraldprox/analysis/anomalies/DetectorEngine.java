@@ -0,0 +1,375 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs any number of detectors over a test.
+ * 
+ * ScanDetectors share a single read of each device's sources: every event is handed to
+ * each detector interested in its type, so adding a detector adds work per event rather
+ * than another read of every file. Other Detectors are run on their own, after the scan.
+ * 
+ * If every ScanDetector is per receiver (See ScanDetector.isPerReceiver) and parallelism is
+ * more than 1, several devices are scanned at once, each by its own scans.
+ * 
+ * detect() returns anomalies from ScanDetectors ordered by receiver, then transmitter (both in
+ * folder order), then start time. Anomalies that tie keep the order of their detectors (as
+ * added), then the order each detector found them. So the order is the same however many
+ * devices are scanned at once. Anomalies from other Detectors follow, in the order returned.
+ */
+public class DetectorEngine {
+    protected List<Detector> detectors = new ArrayList<Detector>();
+    protected int parallelism = 1;
+    protected Metrics metrics = Metrics.NOOP;
+
+    public DetectorEngine() {
+    }
+
+    public DetectorEngine(Detector... toRun) {
+        for (Detector detector : toRun) {
+            add(detector);
+        }
+    }
+
+    public void add(Detector detector) {
+        detectors.add(detector);
+    }
+
+    public List<Detector> getDetectors() {
+        return detectors;
+    }
+
+    /**
+     * @param parallelism The most devices to scan at once. 1 (the default) scans each device in turn on the calling thread
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Records each device's scan, and each other Detector's run (See Metrics).
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return Every anomaly found, in the order described above
+     */
+    public Collection<Anomaly> detect(TestFolder testRun, Date startBound, Date endBound) {
+        final ArrayList<Anomaly> anomalies = new ArrayList<Anomaly>();
+        if (scanDevices(testRun, startBound, endBound, anomalies::add, false)) {
+            // Stable, so ties keep the order they were found in
+            Collections.sort(anomalies, byDevicesAndTime(testRun.getDeviceFolders()));
+        }
+
+        for (Detector detector : detectors) {
+            if (!(detector instanceof ScanDetector)) {
+                Metrics.Stage stage = metrics.stage("detect." + detector.getClass().getSimpleName());
+                Metrics.Timer timer = stage.start();
+                Collection<Anomaly> found = detector.detect(testRun, startBound, endBound);
+                timer.stop();
+                stage.addAnomalies(found.size());
+                anomalies.addAll(found);
+            }
+        }
+        return anomalies;
+    }
+
+    /**
+     * Passes anomalies to the sink as they are found, so that they are not all held in memory.
+     * 
+     * Anomalies from ScanDetectors are passed per device, in folder order, then in the order
+     * found, as sorting them would mean holding them. When scanning devices in parallel, a
+     * device's anomalies are held only until the devices before it have finished, so the
+     * order is the same however many devices are scanned at once. Other Detectors follow.
+     * Does not close the sink.
+     */
+    public void detect(TestFolder testRun, Date startBound, Date endBound, AnomalySink sink) {
+        scanDevices(testRun, startBound, endBound, sink, true);
+        for (Detector detector : detectors) {
+            if (!(detector instanceof ScanDetector)) {
+                Metrics.Stage stage = metrics.stage("detect." + detector.getClass().getSimpleName());
+                Metrics.Timer timer = stage.start();
+                detector.detect(testRun, startBound, endBound, counted(stage, sink));
+                timer.stop();
+            }
+        }
+    }
+
+    /**
+     * Runs every ScanDetector over every device.
+     * 
+     * @param sink Given each device's anomalies in turn, in folder order
+     * @param streaming Whether scans should pass on anomalies as they find them (See DetectorScan.setSink)
+     * @return false if there are no ScanDetectors
+     */
+    protected boolean scanDevices(TestFolder testRun, Date startBound, Date endBound, AnomalySink sink, boolean streaming) {
+        List<ScanDetector> scanned = new ArrayList<ScanDetector>();
+        boolean perReceiver = true;
+        for (Detector detector : detectors) {
+            if (detector instanceof ScanDetector) {
+                scanned.add((ScanDetector)detector);
+                perReceiver &= ((ScanDetector)detector).isPerReceiver();
+            }
+        }
+        if (scanned.isEmpty()) {
+            return false;
+        }
+        List<DeviceFolder> folders = testRun.getDeviceFolders();
+        // Started on this thread, so detectors may lazily create shared state (E.g. Correlator's address index)
+        List<List<DetectorScan>> scans = new ArrayList<List<DetectorScan>>();
+        for (DeviceFolder df : folders) {
+            scans.add(startScans(testRun, df, scanned, startBound, endBound));
+        }
+        if (perReceiver && parallelism > 1 && folders.size() > 1) {
+            scanInParallel(folders, scans, startBound, endBound, sink, streaming);
+        } else {
+            for (int i = 0;i < folders.size();++i) {
+                scan(folders.get(i), scans.get(i), startBound, endBound, sink, streaming);
+            }
+        }
+        return true;
+    }
+
+    protected List<DetectorScan> startScans(TestFolder testRun, DeviceFolder df, List<ScanDetector> scanned, Date startBound, Date endBound) {
+        List<DetectorScan> scans = new ArrayList<DetectorScan>();
+        for (ScanDetector detector : scanned) {
+            scans.add(detector.startScan(testRun, df, startBound, endBound));
+        }
+        return scans;
+    }
+
+    /**
+     * Scans up to parallelism devices at once. Each device's scans are only used by the
+     * thread scanning that device. Anomalies reach the sink per device, in folder order.
+     */
+    protected void scanInParallel(List<DeviceFolder> folders, List<List<DetectorScan>> scans, final Date startBound, final Date endBound, AnomalySink sink, final boolean streaming) {
+        final FolderOrder order = new FolderOrder(sink, folders.size());
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0;i < folders.size();++i) {
+            final int device = i;
+            final DeviceFolder df = folders.get(i);
+            final List<DetectorScan> deviceScans = scans.get(i);
+            tasks.add(() -> {
+                scan(df, deviceScans, startBound, endBound, order.sinkFor(device), streaming);
+                order.finished(device);
+                return null;
+            });
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, folders.size()));
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted whilst scanning devices", ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)ee.getCause();
+            }
+            if (ee.getCause() instanceof Error) {
+                throw (Error)ee.getCause();
+            }
+            throw new IllegalStateException(ee.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Passes on anomalies from devices scanned at the same time in folder order. The first
+     * unfinished device's anomalies go straight to the sink, later devices' are held until
+     * it finishes.
+     */
+    protected static class FolderOrder {
+        final AnomalySink sink;
+        final List<List<Anomaly>> held = new ArrayList<List<Anomaly>>();
+        final boolean[] finished;
+        int current = 0;
+
+        FolderOrder(AnomalySink sink, int devices) {
+            this.sink = sink;
+            this.finished = new boolean[devices];
+            for (int i = 0;i < devices;++i) {
+                held.add(new ArrayList<Anomaly>());
+            }
+        }
+
+        AnomalySink sinkFor(final int device) {
+            return anomaly -> accept(device, anomaly);
+        }
+
+        synchronized void accept(int device, Anomaly anomaly) {
+            if (device == current) {
+                sink.accept(anomaly);
+            } else {
+                held.get(device).add(anomaly);
+            }
+        }
+
+        synchronized void finished(int device) {
+            finished[device] = true;
+            while (current < finished.length && finished[current]) {
+                current++;
+                if (current < finished.length) {
+                    for (Anomaly anomaly : held.get(current)) {
+                        sink.accept(anomaly);
+                    }
+                    held.set(current, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Orders anomalies by receiver, then transmitter, in the order of their folders (devices
+     * not in the test last), then by start time.
+     */
+    protected static Comparator<Anomaly> byDevicesAndTime(List<DeviceFolder> folders) {
+        final Map<TestDevice,Integer> order = new IdentityHashMap<TestDevice,Integer>();
+        for (int i = 0;i < folders.size();++i) {
+            order.putIfAbsent(folders.get(i).getDevice(), i);
+        }
+        return Comparator
+            .comparingInt((Anomaly a) -> order.getOrDefault(a.receiver, Integer.MAX_VALUE))
+            .thenComparingInt((Anomaly a) -> order.getOrDefault(a.transmitter, Integer.MAX_VALUE))
+            .thenComparingLong((Anomaly a) -> null == a.from ? Long.MIN_VALUE : a.from.getTime());
+    }
+
+    /**
+     * Starts following a test whose logs are still being written. Only ScanDetectors which
+     * can follow (See ScanDetector.canFollow) are run, as other Detectors need the whole
+     * period at once.
+     * 
+     * @param startBound The start of the period to report anomalies for
+     * @return Call poll() on this to read what has been logged so far, and again for each update
+     */
+    public DetectorFollower follow(TestFolder testRun, Date startBound) {
+        List<ScanDetector> scanned = new ArrayList<ScanDetector>();
+        for (Detector detector : detectors) {
+            if (detector instanceof ScanDetector && ((ScanDetector)detector).canFollow()) {
+                scanned.add((ScanDetector)detector);
+            }
+        }
+        return new DetectorFollower(testRun, scanned, startBound);
+    }
+
+    /**
+     * Reads each of one device's sources once, for all of the detectors.
+     * 
+     * @param sink Given the anomalies found in this device's events
+     * @param streaming Whether scans should pass on anomalies as they find them, or only once finished
+     */
+    protected void scan(DeviceFolder df, List<DetectorScan> scans, Date startBound, Date endBound, AnomalySink sink, boolean streaming) {
+        Metrics.Stage stage = metrics.stage("scan", df.getFolder().getName());
+        Metrics.Timer timer = stage.start();
+        sink = counted(stage, sink);
+        long visited = 0;
+        Set<EventType> types = EnumSet.noneOf(EventType.class);
+        for (DetectorScan scan : scans) {
+            types.addAll(scan.types());
+            if (streaming) {
+                scan.setSink(sink);
+            }
+        }
+
+        // Which scans want each type, so each event is only offered to those interested
+        EventType[] allTypes = EventType.values();
+        DetectorScan[][] visitors = new DetectorScan[allTypes.length][];
+        for (EventType type : allTypes) {
+            List<DetectorScan> interested = new ArrayList<DetectorScan>();
+            for (DetectorScan scan : scans) {
+                if (scan.types().contains(type)) {
+                    interested.add(scan);
+                }
+            }
+            visitors[type.ordinal()] = interested.toArray(new DetectorScan[0]);
+        }
+
+        for (EventGroup eg : df.getEventGroups()) {
+            Set<EventType> present = EnumSet.noneOf(EventType.class);
+            present.addAll(eg.getSummary().types);
+            present.retainAll(types);
+            if (present.isEmpty()) {
+                continue;
+            }
+
+            EventList events = eg.source.events();
+            EventCursor cursor;
+            int from = 0;
+            int to = 0;
+            if (null == events) {
+                // Forward only source, so visit everything
+                cursor = eg.source.query(present, Long.MIN_VALUE, Long.MAX_VALUE);
+            } else {
+                from = events.firstIndexAtOrAfter(startBound.getTime());
+                to = Math.max(from, events.endIndexAfter(endBound.getTime()));
+                cursor = events.cursor(present, from, to);
+            }
+
+            List<DetectorScan> reading = new ArrayList<DetectorScan>();
+            for (DetectorScan scan : scans) {
+                if (!Collections.disjoint(scan.types(), present)) {
+                    reading.add(scan);
+                }
+            }
+            for (DetectorScan scan : reading) {
+                scan.beforeWindow(events, from);
+            }
+            for (Event e = cursor.next();null != e;e = cursor.next()) {
+                ++visited;
+                for (DetectorScan scan : visitors[e.type().ordinal()]) {
+                    scan.visit(e);
+                }
+            }
+            for (DetectorScan scan : reading) {
+                scan.afterWindow(events, to);
+            }
+        }
+
+        for (DetectorScan scan : scans) {
+            for (Anomaly anomaly : scan.finish()) {
+                sink.accept(anomaly);
+            }
+        }
+        timer.stop();
+        stage.addEvents(visited);
+    }
+
+    /**
+     * @return The sink, counting anomalies into the stage when metrics are being recorded
+     */
+    protected AnomalySink counted(final Metrics.Stage stage, final AnomalySink sink) {
+        if (!metrics.isEnabled()) {
+            return sink;
+        }
+        return anomaly -> {
+            stage.addAnomalies(1);
+            sink.accept(anomaly);
+        };
+    }
+}
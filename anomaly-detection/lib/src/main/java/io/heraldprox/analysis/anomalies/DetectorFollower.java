@@ -0,0 +1,212 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs ScanDetectors over a test whose logs are still being written (See DetectorEngine.follow).
+ *
+ * Each device's scans are kept between polls. A poll reads only the lines appended to each
+ * source since the last poll (See EventSource.readAppended) and visits only their events, so
+ * the work per poll depends on how much was logged since, not on how long the test has run.
+ *
+ * A poll returns each anomaly that is new, has grown since it was last returned, or has ended.
+ * Ongoing anomalies (E.g. a transmitter not seen since) run up to the latest event the
+ * receiver has logged of the types being scanned for, and are returned again each time that
+ * moves on, until they end. Each device's own time is used, as devices' logs may arrive at
+ * different rates.
+ *
+ * Events are visited once, as they are read. So a detector relying on what is logged later
+ * (E.g. the Correlator only links a device's new address once its payload has been read) may
+ * find slightly different anomalies than reading the whole test afterwards would.
+ *
+ * Sources must hold their events in memory, so streaming sources cannot be followed.
+ */
+public class DetectorFollower {
+    protected final List<DeviceFolder> folders;
+    protected final List<ScanDetector> detectors;
+    protected final List<DeviceScans> devices = new ArrayList<DeviceScans>();
+    protected final Date startBound;
+    // Ongoing anomalies last returned, and when they were returned as running until
+    protected Map<Key,Long> ongoing = new HashMap<Key,Long>();
+
+    DetectorFollower(TestFolder testRun, List<ScanDetector> detectors, Date startBound) {
+        this.folders = testRun.getDeviceFolders();
+        this.detectors = detectors;
+        this.startBound = startBound;
+        // No end, so that every event from now on is visited
+        Date endBound = new Date(Long.MAX_VALUE);
+        for (DeviceFolder df : folders) {
+            List<DetectorScan> scans = new ArrayList<DetectorScan>();
+            for (ScanDetector detector : detectors) {
+                scans.add(detector.startScan(testRun, df, startBound, endBound));
+            }
+            devices.add(new DeviceScans(df, scans));
+        }
+    }
+
+    /**
+     * @return The time of the latest event visited so far, of any device, or null if none have been
+     */
+    public Date getNow() {
+        long now = Long.MIN_VALUE;
+        for (DeviceScans device : devices) {
+            now = Math.max(now, device.now);
+        }
+        return Long.MIN_VALUE == now ? null : new Date(now);
+    }
+
+    /**
+     * Reads what has been appended to every device's logs since the last poll.
+     *
+     * @return Anomalies which are new or have grown since the last poll, ordered as by DetectorEngine
+     */
+    public List<Anomaly> poll() {
+        // Every device's new lines are read before any are visited, as detectors may need them all first
+        for (DeviceScans device : devices) {
+            device.readAppended();
+        }
+        for (ScanDetector detector : detectors) {
+            detector.logsAppended();
+        }
+        for (DeviceScans device : devices) {
+            device.visit();
+        }
+
+        List<Anomaly> changed = new ArrayList<Anomaly>();
+        Map<Key,Long> stillOngoing = new HashMap<Key,Long>();
+        for (DeviceScans device : devices) {
+            Date until = new Date(device.now);
+            for (DetectorScan scan : device.scans) {
+                // Always returned, as even if it was ongoing until the same time it now has its full evidence
+                changed.addAll(scan.takeFound());
+                if (Long.MIN_VALUE == device.now) {
+                    continue;
+                }
+                for (Anomaly an : scan.ongoing(until)) {
+                    Key key = new Key(an);
+                    Long returned = ongoing.get(key);
+                    if (null == returned || returned != an.to.getTime()) {
+                        changed.add(an);
+                    }
+                    stillOngoing.put(key, an.to.getTime());
+                }
+            }
+        }
+        ongoing = stillOngoing;
+        Collections.sort(changed, DetectorEngine.byDevicesAndTime(folders));
+        return changed;
+    }
+
+    /**
+     * One device's scans, and how far each of its sources has been read.
+     */
+    protected class DeviceScans {
+        final DeviceFolder df;
+        final List<DetectorScan> scans;
+        final Set<EventType> types = EnumSet.noneOf(EventType.class);
+        final DetectorScan[][] visitors;
+        // Index of the next event to visit in each source, once it has first been read
+        final Map<EventSource,Integer> readTo = new HashMap<EventSource,Integer>();
+        // Time of the latest event visited
+        long now = Long.MIN_VALUE;
+
+        DeviceScans(DeviceFolder df, List<DetectorScan> scans) {
+            this.df = df;
+            this.scans = scans;
+            EventType[] allTypes = EventType.values();
+            visitors = new DetectorScan[allTypes.length][];
+            for (DetectorScan scan : scans) {
+                types.addAll(scan.types());
+            }
+            for (EventType type : allTypes) {
+                List<DetectorScan> interested = new ArrayList<DetectorScan>();
+                for (DetectorScan scan : scans) {
+                    if (scan.types().contains(type)) {
+                        interested.add(scan);
+                    }
+                }
+                visitors[type.ordinal()] = interested.toArray(new DetectorScan[0]);
+            }
+        }
+
+        void readAppended() {
+            for (EventGroup eg : df.getEventGroups()) {
+                EventSource source = eg.source;
+                if (null == source.events()) {
+                    throw new UnsupportedOperationException("Cannot follow " + df.getFolder().getName() + " as its events are not held in memory");
+                }
+                if (readTo.containsKey(source)) {
+                    // Otherwise read in full by events(), above
+                    source.readAppended();
+                }
+            }
+        }
+
+        void visit() {
+            for (EventGroup eg : df.getEventGroups()) {
+                EventSource source = eg.source;
+                EventList events = source.events();
+                Integer from = readTo.get(source);
+                if (null == from) {
+                    // First read of this source, so start the window at startBound
+                    from = events.firstIndexAtOrAfter(startBound.getTime());
+                    for (DetectorScan scan : scans) {
+                        scan.beforeWindow(events, from);
+                    }
+                }
+                int to = events.size();
+                EventCursor cursor = events.cursor(types, from, to);
+                for (Event e = cursor.next();null != e;e = cursor.next()) {
+                    now = Math.max(now, e.occurredAt());
+                    for (DetectorScan scan : visitors[e.type().ordinal()]) {
+                        scan.visit(e);
+                    }
+                }
+                readTo.put(source, to);
+            }
+        }
+    }
+
+    /**
+     * Identifies an anomaly across polls: the same detector, devices and start.
+     */
+    protected static class Key {
+        final Detector detectedBy;
+        final TestDevice receiver;
+        final TestDevice transmitter;
+        final long from;
+
+        Key(Anomaly anomaly) {
+            detectedBy = anomaly.detectedBy;
+            receiver = anomaly.receiver;
+            transmitter = anomaly.transmitter;
+            from = null == anomaly.from ? Long.MIN_VALUE : anomaly.from.getTime();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key)other;
+            // The same device objects, as TestDevice has no hashCode
+            return detectedBy == key.detectedBy && receiver == key.receiver && transmitter == key.transmitter && from == key.from;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((System.identityHashCode(detectedBy) * 31 + System.identityHashCode(receiver)) * 31 + System.identityHashCode(transmitter)) * 31 + Long.hashCode(from);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * One ScanDetector's state whilst reading the events of a single device.
+ * 
+ * For each of the device's sources holding any of types(), the DetectorEngine calls
+ * beforeWindow(), then visit() for each event of those types between startBound and
+ * endBound (in file order), then afterWindow(). finish() is called once all of the
+ * device's sources have been read.
+ * 
+ * When following logs as they are written (See DetectorFollower) there is no end: events
+ * are visited as they are appended, and takeFound() and ongoing() are called after each
+ * poll instead of finish().
+ */
+public interface DetectorScan {
+    /**
+     * @return The event types to visit
+     */
+    public Set<EventType> types();
+
+    /**
+     * Lets the scan look at events before the window (E.g. to find what was last seen).
+     * 
+     * @param events All events of the source, or null if the source can only be read forwards,
+     *               in which case every event of the source is visited, not just those in the window
+     * @param fromIndex The index of the first event in the window
+     */
+    public default void beforeWindow(EventList events, int fromIndex) {
+    }
+
+    public void visit(Event event);
+
+    /**
+     * Lets the scan look at events after the window.
+     * 
+     * @param events All events of the source, or null if the source can only be read forwards
+     * @param toIndex The index just past the last event in the window
+     */
+    public default void afterWindow(EventList events, int toIndex) {
+    }
+
+    /**
+     * @return Anomalies found for this device, less any already passed to the sink
+     */
+    public Collection<Anomaly> finish();
+
+    /**
+     * Asks the scan to pass anomalies to the sink as soon as it finds them, rather than
+     * holding them until finish(). Called before any events are visited. By default
+     * anomalies are held, and the engine passes on those returned by finish().
+     */
+    public default void setSink(AnomalySink sink) {
+    }
+
+    /**
+     * Used when following, and only called if the detector canFollow(). Hands over the
+     * anomalies found since the last call, which later events cannot change.
+     * 
+     * @return Anomalies found since the last call, none by default
+     */
+    public default Collection<Anomaly> takeFound() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Used when following. Anomalies which are still going on, so may be extended (or ended) by later events.
+     * 
+     * @param now The time of the latest event visited for this device
+     * @return Anomalies up to now
+     */
+    public default Collection<Anomaly> ongoing(Date now) {
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,86 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import java.util.Arrays;
+
+/**
+ * Reverse lookup from an OS (E.g. MAC) address to the TestDevice that used it.
+ * 
+ * Built once by the Correlator. Lookups by address code are a single array read, so
+ * detectors should hold on to this rather than calling Correlator.getDeviceByAddress per event.
+ * When following a test as it is logged, the Correlator adds addresses as they are seen.
+ */
+public class DeviceAddressIndex {
+    protected final SymbolTable symbols;
+    protected volatile TestDevice[] devicesByAddressCode;
+
+    public DeviceAddressIndex(SymbolTable symbols, TestDevice[] devicesByAddressCode) {
+        this.symbols = symbols;
+        this.devicesByAddressCode = devicesByAddressCode;
+    }
+
+    /**
+     * @param addressCode Code of the address within the index's SymbolTable
+     * @return The device using this address, or null if not known
+     */
+    public TestDevice get(int addressCode) {
+        TestDevice[] devices = devicesByAddressCode;
+        if (addressCode < 0 || addressCode >= devices.length) {
+            return null;
+        }
+        return devices[addressCode];
+    }
+
+    /**
+     * Links an address to a device, unless it is already linked to one.
+     * 
+     * @return true if the address was added
+     */
+    synchronized boolean add(int addressCode, TestDevice device) {
+        if (null != get(addressCode)) {
+            return false;
+        }
+        // Copied, so that lookups on other threads always see a complete array
+        TestDevice[] devices = Arrays.copyOf(devicesByAddressCode, Math.max(devicesByAddressCode.length, addressCode + 1));
+        devices[addressCode] = device;
+        devicesByAddressCode = devices;
+        return true;
+    }
+
+    /**
+     * @param from The table that addressCode belongs to
+     * @param addressCode Code of the address within from
+     * @return The device using this address, or null if not known
+     */
+    public TestDevice get(SymbolTable from, int addressCode) {
+        if (from == symbols) {
+            return get(addressCode);
+        }
+        if (addressCode < 0) {
+            return null;
+        }
+        return get(symbols.code(from.symbol(addressCode)));
+    }
+
+    public TestDevice get(String address) {
+        return get(symbols.code(address));
+    }
+
+    /**
+     * @return The device for an event's address, or null if not known
+     */
+    public TestDevice get(Event event) {
+        SymbolTable from = event.getPointer().source.symbols();
+        if (null == from) {
+            return get(event.address());
+        }
+        return get(from, event.addressCode());
+    }
+
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+}
@@ -1,4 +1,4 @@
-//  Copyright 2022 Herald Project Contributors
+//  Copyright 2022-2023 Herald Project Contributors
 //  SPDX-License-Identifier: Apache-2.0
 //
 
@@ -6,12 +6,15 @@ package io.heraldprox.analysis.anomalies;
 
 import io.heraldprox.analysis.anomalies.sources.ContactLogSource;
 import io.heraldprox.analysis.anomalies.sources.DetectionLogSource;
+import io.heraldprox.analysis.anomalies.sources.StreamingContactLogSource;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
 
-public class DeviceFolder {
+public class DeviceFolder implements Closeable {
     protected String name;
     protected File folder;
 
@@ -19,15 +22,31 @@ public class DeviceFolder {
 
     protected TestDevice device = new TestDevice();
 
+    protected SymbolTable symbols;
+
     protected boolean checkingContacts = true;
     protected boolean checkingDetections = true;
+    protected boolean streamingContacts = false;
+    protected int parallelism = 1;
+    protected boolean caching = false;
+    protected boolean following = false;
+    protected Metrics metrics = Metrics.NOOP;
 
     // Runtime lazy flags
     protected boolean hasCheckedForEvents = false;
     protected boolean hasReadDetections = false;
 
     public DeviceFolder(File folder) {
+        this(folder, new SymbolTable());
+    }
+
+    /**
+     * @param folder The device's folder within a test run
+     * @param symbols Dictionary shared by all devices in the same test, so that their values may be compared by code
+     */
+    public DeviceFolder(File folder, SymbolTable symbols) {
         this.folder = folder;
+        this.symbols = symbols;
         // Assign temporary name for now
         this.name = folder.getName();
     }
@@ -36,6 +55,10 @@ public class DeviceFolder {
         return folder;
     }
 
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
     public void setCheckingContacts(boolean doCheck) {
         checkingContacts = doCheck;
     }
@@ -44,7 +67,66 @@ public class DeviceFolder {
         return checkingContacts;
     }
 
-    protected void readDetections() {
+    /**
+     * Reads contacts a window at a time rather than all at once, for files larger than the heap.
+     * Must be set before the contacts are first read.
+     */
+    public void setStreamingContacts(boolean doStream) {
+        streamingContacts = doStream;
+    }
+
+    public boolean isStreamingContacts() {
+        return streamingContacts;
+    }
+
+    /**
+     * Sets the most threads used to parse a single large contacts.csv file (See ContactLogSource.setParallelism).
+     * Must be set before the contacts are first read.
+     */
+    public void setParallelism(int threads) {
+        parallelism = threads;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Keeps a binary copy of parsed contacts next to contacts.csv, for faster re-runs over the
+     * same data (See ContactLogSource.setCaching). Must be set before the contacts are first read.
+     */
+    public void setCaching(boolean doCache) {
+        caching = doCache;
+    }
+
+    public boolean isCaching() {
+        return caching;
+    }
+
+    /**
+     * For a test still in progress, where contacts.csv is still being appended to (See
+     * ContactLogSource.setFollowing). Must be set before the contacts are first read.
+     */
+    public void setFollowing(boolean doFollow) {
+        following = doFollow;
+    }
+
+    public boolean isFollowing() {
+        return following;
+    }
+
+    /**
+     * Records reading this device's files (See Metrics). Must be set before they are first read.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    protected synchronized void readDetections() {
         if (hasReadDetections) {
             return;
         }
@@ -54,7 +136,14 @@ public class DeviceFolder {
             hasReadDetections = true;
 
             File detectionFile = new File(folder,"detection.csv");
-            DetectionLogSource dl = new DetectionLogSource(detectionFile, device);
+            Metrics.Stage stage = metrics.stage("detections.parse", name);
+            Metrics.Timer timer = stage.start();
+            DetectionLogSource dl = new DetectionLogSource(detectionFile, device, symbols);
+            timer.stop();
+            if (metrics.isEnabled()) {
+                stage.addRows(dl.summarise().eventCount);
+                stage.addBytes(detectionFile.length());
+            }
             eventGroups.add(new EventGroup(dl));
         }
     }
@@ -67,7 +156,7 @@ public class DeviceFolder {
         return checkingDetections;
     }
 
-    public List<EventGroup> getEventGroups() {
+    public synchronized List<EventGroup> getEventGroups() {
         if (hasCheckedForEvents) {
             return eventGroups;
         }
@@ -77,8 +166,18 @@ public class DeviceFolder {
             hasCheckedForEvents = true;
 
             File contactFile = new File(folder,"contacts.csv");
-            ContactLogSource cl = new ContactLogSource(contactFile);
-            eventGroups.add(new EventGroup(cl));
+            if (streamingContacts) {
+                StreamingContactLogSource scl = new StreamingContactLogSource(contactFile, symbols);
+                scl.setMetrics(metrics);
+                eventGroups.add(new EventGroup(scl));
+            } else {
+                ContactLogSource cl = new ContactLogSource(contactFile, symbols);
+                cl.setParallelism(parallelism);
+                cl.setCaching(caching);
+                cl.setFollowing(following);
+                cl.setMetrics(metrics);
+                eventGroups.add(new EventGroup(cl));
+            }
         }
 
         readDetections();
@@ -91,4 +190,37 @@ public class DeviceFolder {
         return device;
     }
 
+    /**
+     * Eagerly reads every file this folder is checking, rather than waiting for first use.
+     * 
+     * @return Any errors encountered reading this folder's files. Empty if all were read successfully
+     */
+    public List<Exception> load() {
+        List<Exception> failures = new ArrayList<Exception>();
+        for (EventGroup eg : getEventGroups()) {
+            eg.getSummary(); // forces parsing
+            Exception failure = eg.source.getFailure();
+            if (null != failure) {
+                failures.add(failure);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Releases any file handles held by this folder's sources. Only sources already created
+     * are closed, so this never causes files to be read.
+     */
+    @Override
+    public synchronized void close() {
+        for (EventGroup eg : eventGroups) {
+            if (eg.source instanceof Closeable) {
+                try {
+                    ((Closeable)eg.source).close();
+                } catch (IOException ioe) {
+                    // Nothing more to read anyway
+                }
+            }
+        }
+    }
 }
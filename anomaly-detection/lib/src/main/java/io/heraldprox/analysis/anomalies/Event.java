@@ -1,4 +1,4 @@
-//  Copyright 2022 Herald Project Contributors
+//  Copyright 2022-2023 Herald Project Contributors
 //  SPDX-License-Identifier: Apache-2.0
 //
 
@@ -8,15 +8,22 @@ import java.util.Date;
 
 /**
  * Represents a Raw event. May be subclassed to describe event more accurately
+ * 
+ * Events read from an EventSource are views over its EventList columns, so they
+ * are cheap to create and should not be relied upon for identity.
  */
 public class Event {
     protected final EventType type;
     protected final EventPointer pointer;
-    protected final Date occurred;
+    protected final long occurred;
 
     public Event(Date occurred,EventType type,EventPointer pointer) {
+        this(occurred.getTime(), type, pointer);
+    }
+
+    public Event(long occurredAt,EventType type,EventPointer pointer) {
         this.type = type;
-        this.occurred = occurred;
+        this.occurred = occurredAt;
         this.pointer = pointer;
     }
 
@@ -28,7 +35,52 @@ public class Event {
         return pointer.text();
     }
 
+    public String sensor() {
+        return pointer.source.sensor(pointer.startLine);
+    }
+
+    /**
+     * @return The OS provided address of the remote device, E.g. a MAC address
+     */
+    public String address() {
+        return pointer.source.address(pointer.startLine);
+    }
+
+    public String data() {
+        return pointer.source.data(pointer.startLine);
+    }
+
+    /**
+     * @return The address as a code within the source's SymbolTable, or -1 if not encoded
+     */
+    public int addressCode() {
+        return pointer.source.addressCode(pointer.startLine);
+    }
+
+    /**
+     * @return The data value as a code within the source's SymbolTable, or -1 if not encoded
+     */
+    public int dataCode() {
+        return pointer.source.dataCode(pointer.startLine);
+    }
+
+    /**
+     * @return The RSSI for this event, or NaN if it is not an RSSI measurement
+     */
+    public double rssi() {
+        return pointer.source.rssi(pointer.startLine);
+    }
+
     public Date whenOccurred() {
+        return new Date(occurred);
+    }
+
+    /**
+     * Allocation free alternative to whenOccurred()
+     * 
+     * @return Epoch time in milliseconds
+     */
+    public long occurredAt() {
         return occurred;
     }
 
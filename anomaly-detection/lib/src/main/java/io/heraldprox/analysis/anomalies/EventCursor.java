@@ -0,0 +1,18 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+/**
+ * A read through the events of a source that match a query (See EventSource.query).
+ * 
+ * Each cursor keeps its own position, so any number of cursors may read the same source
+ * at once, including from different threads. A single cursor is not thread safe.
+ */
+public interface EventCursor {
+    /**
+     * @return The next matching event, or null when there are no more
+     */
+    public Event next();
+}
@@ -1,31 +1,466 @@
-//  Copyright 2022 Herald Project Contributors
+//  Copyright 2022-2023 Herald Project Contributors
 //  SPDX-License-Identifier: Apache-2.0
 //
 
 package io.heraldprox.analysis.anomalies;
 
-import java.util.Vector;
+import io.heraldprox.analysis.anomalies.columns.ByteColumn;
+import io.heraldprox.analysis.anomalies.columns.IntColumn;
+import io.heraldprox.analysis.anomalies.columns.LongColumn;
+
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Set;
 
+/**
+ * Columnar store of events.
+ * 
+ * Rather than holding an Event object (plus Date and EventPointer) per row, each event
+ * field is held in its own primitive column. Event instances returned from this class
+ * are lightweight views created on demand, and are never stored.
+ * 
+ * Almost all lists hold events from a single EventSource, so the per-row source column
+ * is only created once a second source is added.
+ * 
+ * A posting list of event indexes is kept per EventType as events are added, so type
+ * filtered iteration only visits matching events.
+ * 
+ * A time index (the min and max time of each block of events) is built when first needed,
+ * so that callers can seek to a time range. Events are normally in time order, but the
+ * index gives exact answers even when they are not.
+ */
 public class EventList {
-    protected Vector<Event> events = new Vector<Event>();
+    protected static final EventType[] TYPES = EventType.values();
+
+    protected LongColumn occurred = new LongColumn();
+    protected ByteColumn types = new ByteColumn();
+    protected LongColumn startLines = new LongColumn();
+    protected LongColumn endLines = new LongColumn();
+
+    protected EventSource[] sources = new EventSource[0];
+    protected IntColumn sourceCodes = null; // null whilst only one source is present
+    protected int lastSourceCode = 0;
+
+    // Per EventType list of indexes into the columns above, in ascending order
+    protected IntColumn[] postings = new IntColumn[TYPES.length];
+    protected int[] postingHints = new int[TYPES.length];
+
+    // Rebuilt on first use after events are added
+    protected volatile TimeIndex timeIndex = null;
 
     public void add(Event event) {
-        events.add(event);
+        EventPointer pointer = event.getPointer();
+        if (null == pointer) {
+            add(null, event.occurredAt(), event.type(), 0, 0);
+        } else {
+            add(pointer.source, event.occurredAt(), event.type(), pointer.startLine, pointer.endLine);
+        }
     }
 
+    /**
+     * Adds an event without creating any per-event objects. This is the method that
+     * EventSource implementations should use whilst reading their files.
+     */
+    public void add(EventSource source, long occurredAt, EventType type, long startLine, long endLine) {
+        int code = sourceCode(source);
+        if (0 != code && null == sourceCodes) {
+            sourceCodes = new IntColumn();
+            for (int i = 0;i < occurred.size();++i) {
+                sourceCodes.add(0);
+            }
+        }
+        occurred.add(occurredAt);
+        types.add((byte)type.ordinal());
+        startLines.add(startLine);
+        endLines.add(endLine);
+        if (null != sourceCodes) {
+            sourceCodes.add(code);
+        }
+        IntColumn posting = postings[type.ordinal()];
+        if (null == posting) {
+            posting = new IntColumn();
+            postings[type.ordinal()] = posting;
+        }
+        posting.add(occurred.size() - 1);
+    }
+
+    /**
+     * Appends every event of another list, in order, moving their line numbers along.
+     * Used to join lists built in parallel from consecutive parts of one file.
+     *
+     * @param other The events to append
+     * @param lineShift Added to the start and end line of every appended event
+     */
+    public void addAll(EventList other, long lineShift) {
+        for (int i = 0;i < other.size();++i) {
+            add(other.sourceAt(i), other.occurredAt(i), other.typeAt(i), other.startLineAt(i) + lineShift, other.endLineAt(i) + lineShift);
+        }
+    }
+
+    /**
+     * Removes every event, keeping the allocated storage for reuse (E.g. by a streaming source's window).
+     */
+    public void clear() {
+        occurred.clear();
+        types.clear();
+        startLines.clear();
+        endLines.clear();
+        sources = new EventSource[0];
+        sourceCodes = null;
+        lastSourceCode = 0;
+        timeIndex = null;
+        for (int i = 0;i < postings.length;++i) {
+            if (null != postings[i]) {
+                postings[i].clear();
+            }
+            postingHints[i] = 0;
+        }
+    }
+
+    protected int sourceCode(EventSource source) {
+        if (lastSourceCode < sources.length && sources[lastSourceCode] == source) {
+            return lastSourceCode;
+        }
+        for (int i = 0;i < sources.length;++i) {
+            if (sources[i] == source) {
+                lastSourceCode = i;
+                return i;
+            }
+        }
+        sources = Arrays.copyOf(sources, sources.length + 1);
+        sources[sources.length - 1] = source;
+        lastSourceCode = sources.length - 1;
+        return lastSourceCode;
+    }
+
+    /**
+     * Returns a read only view over the events. Each Event is created as it is accessed.
+     */
     public Collection<Event> getEvents() {
-        return events;
+        return new AbstractList<Event>() {
+            @Override
+            public Event get(int index) {
+                if (index < 0 || index >= size()) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+                }
+                return atIndex(index);
+            }
+
+            @Override
+            public int size() {
+                return EventList.this.size();
+            }
+        };
     }
 
     public int size() {
-        return events.size();
+        return occurred.size();
     }
 
     public Event atIndex(int position) {
-        if (position >= events.size()) {
+        if (position >= size()) {
             return null;
         }
-        return events.get(position);
+        EventSource source = sourceAt(position);
+        EventPointer pointer = null;
+        if (null != source) {
+            pointer = new EventPointer(source, startLines.get(position), endLines.get(position));
+        }
+        return new Event(occurred.get(position), typeAt(position), pointer);
+    }
+
+    public long occurredAt(int position) {
+        return occurred.get(position);
+    }
+
+    public EventType typeAt(int position) {
+        return TYPES[types.get(position)];
+    }
+
+    public long startLineAt(int position) {
+        return startLines.get(position);
+    }
+
+    public long endLineAt(int position) {
+        return endLines.get(position);
+    }
+
+    public int countOfType(EventType type) {
+        IntColumn posting = postings[type.ordinal()];
+        return null == posting ? 0 : posting.size();
+    }
+
+    /**
+     * Bulk access to the posting list for an EventType.
+     * 
+     * @param type The EventType to list
+     * @return Ascending indexes of every event of that type, suitable for atIndex() and the column accessors
+     */
+    public int[] indexesOfType(EventType type) {
+        IntColumn posting = postings[type.ordinal()];
+        return null == posting ? new int[0] : posting.toArray();
+    }
+
+    /**
+     * Finds the first event of the given type at or after fromIndex.
+     * 
+     * Sequential calls (fromIndex one past the last result) are O(1), otherwise
+     * this is a binary search of the posting list.
+     * 
+     * @return The event index, or size() if there are no more events of that type
+     */
+    public int nextIndexOfType(EventType type, int fromIndex) {
+        IntColumn posting = postings[type.ordinal()];
+        if (null == posting) {
+            return size();
+        }
+        int count = posting.size();
+        int hint = postingHints[type.ordinal()];
+        int position;
+        if (hint < count && posting.get(hint) >= fromIndex && (0 == hint || posting.get(hint - 1) < fromIndex)) {
+            position = hint;
+        } else {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (posting.get(mid) < fromIndex) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            position = low;
+        }
+        if (position >= count) {
+            return size();
+        }
+        postingHints[type.ordinal()] = position + 1;
+        return posting.get(position);
+    }
+
+    /**
+     * Finds the last event of the given type before beforeIndex.
+     * 
+     * @return The event index, or -1 if there are no earlier events of that type
+     */
+    public int previousIndexOfType(EventType type, int beforeIndex) {
+        IntColumn posting = postings[type.ordinal()];
+        if (null == posting) {
+            return -1;
+        }
+        int low = 0;
+        int high = posting.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (posting.get(mid) < beforeIndex) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return 0 == low ? -1 : posting.get(low - 1);
+    }
+
+    /**
+     * @param types The event types to return, or null for all types
+     * @param from The earliest event time to return, in epoch milliseconds
+     * @param to The latest event time to return, in epoch milliseconds
+     * @return A new cursor over the matching events, which may be used alongside any other
+     */
+    public EventCursor query(final Set<EventType> types, final long from, final long to) {
+        int start = firstIndexAtOrAfter(from);
+        return new Cursor(types, start, Math.max(start, endIndexAfter(to)), from, to);
+    }
+
+    /**
+     * @param types The event types to return, or null for all types
+     * @param fromIndex The first event index to return
+     * @param toIndex Just past the last event index to return
+     * @return A new cursor over the matching events between the indexes, whatever their time
+     */
+    public EventCursor cursor(final Set<EventType> types, final int fromIndex, final int toIndex) {
+        return new Cursor(types, fromIndex, toIndex, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads the events between two indexes that are within a time range. A single type is read from its
+     * posting list, otherwise every event in the bounds is checked against the types.
+     */
+    protected class Cursor implements EventCursor {
+        final boolean[] wanted = new boolean[TYPES.length];
+        final long from;
+        final long to;
+        final int end;
+        final IntColumn posting; // only when a single type is wanted
+        int position; // within posting, or the next event index if no posting
+
+        Cursor(Set<EventType> types, int start, int end, long from, long to) {
+            this.from = from;
+            this.to = to;
+            this.end = end;
+            for (EventType type : TYPES) {
+                wanted[type.ordinal()] = (null == types || types.contains(type));
+            }
+            EventType only = (null != types && 1 == types.size()) ? types.iterator().next() : null;
+            if (null == only) {
+                posting = null;
+                position = start;
+            } else {
+                posting = (null == postings[only.ordinal()]) ? new IntColumn() : postings[only.ordinal()];
+                // First posting at or after start
+                int low = 0;
+                int high = posting.size();
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (posting.get(mid) < start) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                position = low;
+            }
+        }
+
+        @Override
+        public Event next() {
+            while (true) {
+                int index;
+                if (null == posting) {
+                    if (position >= end) {
+                        return null;
+                    }
+                    index = position++;
+                    if (!wanted[EventList.this.types.get(index)]) {
+                        continue;
+                    }
+                } else {
+                    if (position >= posting.size() || posting.get(position) >= end) {
+                        return null;
+                    }
+                    index = posting.get(position++);
+                }
+                // Only needed if times are out of order
+                long time = occurred.get(index);
+                if (time >= from && time <= to) {
+                    return atIndex(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The first event index with a time at or after time, or size() if none. Every
+     *         event before this index occurred before time
+     */
+    public int firstIndexAtOrAfter(long time) {
+        return timeIndex().firstIndexAtOrAfter(time);
+    }
+
+    /**
+     * @return The lowest index from which every later event occurred after time. size() if
+     *         the last event occurred at or before time
+     */
+    public int endIndexAfter(long time) {
+        return timeIndex().endIndexAfter(time);
+    }
+
+    protected TimeIndex timeIndex() {
+        TimeIndex index = timeIndex;
+        if (null == index || index.size != size()) {
+            index = new TimeIndex(occurred, size());
+            timeIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Min and max time per block of events. Prefix maximums and suffix minimums make both
+     * searches a binary search over blocks, followed by a scan of one block.
+     */
+    protected static class TimeIndex {
+        static final int BLOCK_SHIFT = 8;
+        static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+        final LongColumn occurred;
+        final int size;
+        final long[] prefixMax; // the latest time in this block or any before it
+        final long[] suffixMin; // the earliest time in this block or any after it
+
+        TimeIndex(LongColumn occurred, int size) {
+            this.occurred = occurred;
+            this.size = size;
+            int blocks = (size + BLOCK_SIZE - 1) >>> BLOCK_SHIFT;
+            prefixMax = new long[blocks];
+            suffixMin = new long[blocks];
+            long max = Long.MIN_VALUE;
+            for (int b = 0;b < blocks;++b) {
+                for (int i = b << BLOCK_SHIFT;i < Math.min(size, (b + 1) << BLOCK_SHIFT);++i) {
+                    max = Math.max(max, occurred.get(i));
+                }
+                prefixMax[b] = max;
+            }
+            long min = Long.MAX_VALUE;
+            for (int b = blocks - 1;b >= 0;--b) {
+                for (int i = b << BLOCK_SHIFT;i < Math.min(size, (b + 1) << BLOCK_SHIFT);++i) {
+                    min = Math.min(min, occurred.get(i));
+                }
+                suffixMin[b] = min;
+            }
+        }
+
+        int firstIndexAtOrAfter(long time) {
+            // First block holding a time at or after time
+            int low = 0;
+            int high = prefixMax.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (prefixMax[mid] < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (low == prefixMax.length) {
+                return size;
+            }
+            int i = low << BLOCK_SHIFT;
+            while (i < size && occurred.get(i) < time) {
+                ++i;
+            }
+            return i;
+        }
+
+        int endIndexAfter(long time) {
+            // First block from which every time is after time
+            int low = 0;
+            int high = suffixMin.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (suffixMin[mid] <= time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (0 == low) {
+                return 0;
+            }
+            // The block before holds the last time at or before time
+            int i = Math.min(size, low << BLOCK_SHIFT) - 1;
+            while (i >= ((low - 1) << BLOCK_SHIFT) && occurred.get(i) > time) {
+                --i;
+            }
+            return i + 1;
+        }
+    }
+
+    public EventSource sourceAt(int position) {
+        if (null == sourceCodes) {
+            return 0 == sources.length ? null : sources[0];
+        }
+        return sources[sourceCodes.get(position)];
     }
 }
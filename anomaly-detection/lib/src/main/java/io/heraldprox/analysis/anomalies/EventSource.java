@@ -1,9 +1,17 @@
-//  Copyright 2022 Herald Project Contributors
+//  Copyright 2022-2023 Herald Project Contributors
 //  SPDX-License-Identifier: Apache-2.0
 //
 
 package io.heraldprox.analysis.anomalies;
 
+import java.util.Set;
+
+/**
+ * A log file, read as a series of events.
+ * 
+ * first()/next() and firstByType()/nextByType() share a single position per source, so only
+ * one caller may use them at a time. query() returns independent cursors instead.
+ */
 public interface EventSource {
     public EventGroupSummary summarise();
 
@@ -17,6 +25,45 @@ public interface EventSource {
 
     public Event nextByType(final EventType type);
 
+    /**
+     * Random access to all events read by this source, including the per type indexes.
+     * 
+     * @return The events, indexed in file order, or null if this source can only be read forwards (See StreamingContactLogSource)
+     */
+    public EventList events();
+
+    /**
+     * Reads matching events without affecting, or being affected by, any other reader of this source.
+     * 
+     * @param types The event types to return, or null for all types
+     * @param from The earliest event time to return, in epoch milliseconds
+     * @param to The latest event time to return, in epoch milliseconds
+     * @return A new cursor over the matching events, in file order
+     */
+    public default EventCursor query(final Set<EventType> types, final long from, final long to) {
+        return events().query(types, from, to);
+    }
+
+    /**
+     * Reads any events appended to the source's file since it was last read, adding them to
+     * the end of events(). For following a log as it is written (See DetectorFollower).
+     * 
+     * @return The number of events added. Always 0 for sources that do not support this
+     */
+    public default int readAppended() {
+        return 0;
+    }
+
+    /**
+     * Bulk alternative to firstByType/nextByType. Does not affect the first/next position.
+     * 
+     * @param type The EventType to list
+     * @return The index within events() of every event of this type, in file order
+     */
+    public default int[] indexesOfType(final EventType type) {
+        return events().indexesOfType(type);
+    }
+
     /**
      * Note event IDS do NOT have to be contiguous - they could be lines, and multi-line.
      * At this point in the API information lifecycle, they are raw line numbers.
@@ -25,4 +72,61 @@ public interface EventSource {
      * @return
      */
     public String text(long lineNumber);
+
+    /**
+     * @return The error that stopped this source from being read, or null if it was read successfully (or not yet read)
+     */
+    public default Exception getFailure() {
+        return null;
+    }
+
+    /**
+     * Parsed payload accessors. These return values held since the file was read, and so
+     * do not allocate. Sources without the relevant column return blank (or NaN).
+     */
+    public default String sensor(long lineNumber) {
+        return "";
+    }
+
+    /**
+     * @return The OS provided (E.g. MAC) address of the remote device for this line
+     */
+    public default String address(long lineNumber) {
+        return "";
+    }
+
+    /**
+     * @return The data column for this line, E.g. a broadcast ID or RSSI value
+     */
+    public default String data(long lineNumber) {
+        return text(lineNumber);
+    }
+
+    /**
+     * @return The RSSI for this line, or NaN if it does not hold an RSSI value
+     */
+    public default double rssi(long lineNumber) {
+        return Double.NaN;
+    }
+
+    /**
+     * @return The dictionary for addressCode() and dataCode(), or null if this source does not encode values
+     */
+    public default SymbolTable symbols() {
+        return null;
+    }
+
+    /**
+     * @return The address as a code in symbols(), or -1 if not available
+     */
+    public default int addressCode(long lineNumber) {
+        return -1;
+    }
+
+    /**
+     * @return The data value as a code in symbols(), or -1 if not available
+     */
+    public default int dataCode(long lineNumber) {
+        return -1;
+    }
 }
@@ -0,0 +1,174 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The events an Anomaly was found from, held as references into their sources.
+ *
+ * Only each event's source, line numbers, time and type are kept, in primitive arrays, so
+ * an anomaly holds a few small arrays rather than an EventList and its columns. The text
+ * of each event is read from its source only when asked for (See text()). Line numbers
+ * are those of the source's file, with the header as line 0. The exception is a
+ * DetectionLogSource, whose events all come from the one line of detections.csv: its
+ * 'line numbers' are the column of each event on that line.
+ *
+ * Immutable once created.
+ */
+public class Evidence {
+    public static final Evidence NONE = new Evidence(new EventSource[0], new long[0], null, new long[0], new byte[0]);
+
+    protected static final EventType[] TYPES = EventType.values();
+
+    // One per event, or a single entry shared by every event when they have the same source
+    protected final EventSource[] sources;
+    protected final long[] startLines;
+    protected final long[] endLines; // null when every event is on a single line
+    protected final long[] occurred;
+    protected final byte[] types;
+
+    protected Evidence(EventSource[] sources, long[] startLines, long[] endLines, long[] occurred, byte[] types) {
+        this.sources = sources;
+        this.startLines = startLines;
+        this.endLines = endLines;
+        this.occurred = occurred;
+        this.types = types;
+    }
+
+    /**
+     * @param events The events, in the order to hold them. Events without a pointer have no source
+     */
+    public static Evidence of(Event... events) {
+        int count = events.length;
+        EventSource[] sources = new EventSource[count];
+        long[] startLines = new long[count];
+        long[] endLines = new long[count];
+        long[] occurred = new long[count];
+        byte[] types = new byte[count];
+        for (int i = 0;i < count;++i) {
+            EventPointer pointer = events[i].getPointer();
+            if (null != pointer) {
+                sources[i] = pointer.source;
+                startLines[i] = pointer.startLine;
+                endLines[i] = pointer.endLine;
+            }
+            occurred[i] = events[i].occurredAt();
+            types[i] = (byte)events[i].type().ordinal();
+        }
+        return compact(sources, startLines, endLines, occurred, types);
+    }
+
+    /**
+     * Copies the references to each event in the list, not the list itself.
+     */
+    public static Evidence of(EventList events) {
+        if (null == events) {
+            return NONE;
+        }
+        int count = events.size();
+        EventSource[] sources = new EventSource[count];
+        long[] startLines = new long[count];
+        long[] endLines = new long[count];
+        long[] occurred = new long[count];
+        byte[] types = new byte[count];
+        for (int i = 0;i < count;++i) {
+            sources[i] = events.sourceAt(i);
+            startLines[i] = events.startLineAt(i);
+            endLines[i] = events.endLineAt(i);
+            occurred[i] = events.occurredAt(i);
+            types[i] = (byte)events.typeAt(i).ordinal();
+        }
+        return compact(sources, startLines, endLines, occurred, types);
+    }
+
+    protected static Evidence compact(EventSource[] sources, long[] startLines, long[] endLines, long[] occurred, byte[] types) {
+        boolean oneSource = true;
+        for (int i = 1;i < sources.length && oneSource;++i) {
+            oneSource = sources[i] == sources[0];
+        }
+        if (oneSource && sources.length > 1) {
+            sources = new EventSource[] {sources[0]};
+        }
+        if (Arrays.equals(startLines, endLines)) {
+            endLines = null;
+        }
+        return new Evidence(sources, startLines, endLines, occurred, types);
+    }
+
+    public int size() {
+        return occurred.length;
+    }
+
+    /**
+     * @return The source of the event, or null if it has none
+     */
+    public EventSource sourceAt(int position) {
+        return 1 == sources.length ? sources[0] : sources[position];
+    }
+
+    public long startLineAt(int position) {
+        return startLines[position];
+    }
+
+    public long endLineAt(int position) {
+        return null == endLines ? startLines[position] : endLines[position];
+    }
+
+    public long occurredAt(int position) {
+        return occurred[position];
+    }
+
+    public EventType typeAt(int position) {
+        return TYPES[types[position]];
+    }
+
+    /**
+     * @return A view over the event, created on each call
+     */
+    public Event atIndex(int position) {
+        EventSource source = sourceAt(position);
+        EventPointer pointer = null;
+        if (null != source) {
+            pointer = new EventPointer(source, startLineAt(position), endLineAt(position));
+        }
+        return new Event(occurred[position], typeAt(position), pointer);
+    }
+
+    /**
+     * Reads the event's lines from its source. Streaming sources may re-read their file to do so.
+     *
+     * @return The event's text, or blank if it has no source
+     */
+    public String text(int position) {
+        EventSource source = sourceAt(position);
+        if (null == source) {
+            return "";
+        }
+        return new EventPointer(source, startLineAt(position), endLineAt(position)).text();
+    }
+
+    /**
+     * @return A read only view over the events, each created as it is accessed
+     */
+    public List<Event> getEvents() {
+        return new AbstractList<Event>() {
+            @Override
+            public Event get(int index) {
+                if (index < 0 || index >= size()) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+                }
+                return atIndex(index);
+            }
+
+            @Override
+            public int size() {
+                return Evidence.this.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,296 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how long each stage of an analysis took, and how much it read and produced, per
+ * device. Given to TestFolder (and from there each DeviceFolder and its sources), the
+ * Correlator and the DetectorEngine with their setMetrics methods.
+ *
+ * Stages recorded:-
+ * - load: TestFolder.load, for the whole test
+ * - contacts.parse, contacts.cache, contacts.append: ContactLogSource reading contacts.csv, its cache, or lines appended to it
+ * - contacts.summarise, contacts.window: StreamingContactLogSource's first pass and each window read
+ * - detections.parse: reading detection.csv
+ * - correlate: linking the addresses one device read to devices, then correlate.index for the whole test
+ * - series: splitting the RSSI readings of one receiver by transmitter (See RssiSeriesMatrix)
+ * - scan: the DetectorEngine's pass over one device's events, for every ScanDetector
+ * - detect.(Detector class): each Detector that is not a ScanDetector, for the whole test
+ *
+ * CPU time and allocated bytes are those of the thread running the stage, so work it hands to
+ * other threads (E.g. parsing one large file in parallel) is not included. Either is 0 if the
+ * JVM cannot measure it.
+ *
+ * NOOP records nothing, and is what everything uses until given another. Its stages and
+ * timers are shared instances whose methods return at once, so leaving metrics off costs a
+ * method call per stage rather than per event.
+ */
+public class Metrics {
+    public static final Metrics NOOP = new Metrics(false);
+
+    protected static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    protected static final Stage NOOP_STAGE = new Stage(null, "", "");
+    protected static final Timer NOOP_TIMER = new Timer(NOOP_STAGE);
+
+    protected final boolean enabled;
+    protected final ConcurrentHashMap<String,Stage> stages = new ConcurrentHashMap<String,Stage>();
+    protected final boolean cpuTime;
+    protected final boolean allocation;
+
+    public Metrics() {
+        this(true);
+    }
+
+    protected Metrics(boolean enabled) {
+        this.enabled = enabled;
+        boolean cpu = false;
+        boolean allocated = false;
+        if (enabled) {
+            try {
+                cpu = THREADS.isCurrentThreadCpuTimeSupported();
+                if (cpu && !THREADS.isThreadCpuTimeEnabled()) {
+                    THREADS.setThreadCpuTimeEnabled(true);
+                }
+                allocated = THREADS instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean)THREADS).isThreadAllocatedMemorySupported();
+                if (allocated && !((com.sun.management.ThreadMXBean)THREADS).isThreadAllocatedMemoryEnabled()) {
+                    ((com.sun.management.ThreadMXBean)THREADS).setThreadAllocatedMemoryEnabled(true);
+                }
+            } catch (UnsupportedOperationException | SecurityException | NoClassDefFoundError e) {
+                // Recorded as 0 instead
+            }
+        }
+        this.cpuTime = cpu;
+        this.allocation = allocated;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param name The stage, as listed above
+     * @param device The device (folder) name, or "" for the whole test
+     * @return The stage's totals, created on first use. Safe to update from any thread
+     */
+    public Stage stage(String name, String device) {
+        if (!enabled) {
+            return NOOP_STAGE;
+        }
+        String key = name + "\n" + device;
+        Stage stage = stages.get(key);
+        if (null == stage) {
+            stage = stages.computeIfAbsent(key, k -> new Stage(this, name, device));
+        }
+        return stage;
+    }
+
+    /**
+     * A stage for the whole test, rather than one device.
+     */
+    public Stage stage(String name) {
+        return stage(name, "");
+    }
+
+    /**
+     * @return Every stage recorded, ordered by name then device
+     */
+    public List<Stage> getStages() {
+        List<Stage> sorted = new ArrayList<Stage>(stages.values());
+        Collections.sort(sorted, Comparator.comparing((Stage s) -> s.name).thenComparing((Stage s) -> s.device));
+        return sorted;
+    }
+
+    protected long cpuNanos() {
+        return cpuTime ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    protected long allocatedBytes() {
+        return allocation ? ((com.sun.management.ThreadMXBean)THREADS).getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    /**
+     * Running totals for one stage of one device. Counts are only those reported to it.
+     */
+    public static class Stage {
+        protected final Metrics metrics;
+        public final String name;
+        public final String device;
+        protected final LongAdder calls = new LongAdder();
+        protected final LongAdder wallNanos = new LongAdder();
+        protected final LongAdder cpuNanos = new LongAdder();
+        protected final LongAdder allocatedBytes = new LongAdder();
+        protected final LongAdder rows = new LongAdder();
+        protected final LongAdder bytes = new LongAdder();
+        protected final LongAdder events = new LongAdder();
+        protected final LongAdder anomalies = new LongAdder();
+
+        protected Stage(Metrics metrics, String name, String device) {
+            this.metrics = metrics;
+            this.name = name;
+            this.device = device;
+        }
+
+        /**
+         * @return A timer for one run of this stage on the calling thread. Call stop() on the same thread
+         */
+        public Timer start() {
+            return null == metrics ? NOOP_TIMER : new Timer(this);
+        }
+
+        public void addRows(long count) {
+            if (null != metrics) {
+                rows.add(count);
+            }
+        }
+
+        public void addBytes(long count) {
+            if (null != metrics) {
+                bytes.add(count);
+            }
+        }
+
+        public void addEvents(long count) {
+            if (null != metrics) {
+                events.add(count);
+            }
+        }
+
+        public void addAnomalies(long count) {
+            if (null != metrics) {
+                anomalies.add(count);
+            }
+        }
+
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        public long getWallNanos() {
+            return wallNanos.sum();
+        }
+
+        public long getCpuNanos() {
+            return cpuNanos.sum();
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes.sum();
+        }
+
+        public long getRows() {
+            return rows.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        public long getEvents() {
+            return events.sum();
+        }
+
+        public long getAnomalies() {
+            return anomalies.sum();
+        }
+    }
+
+    /**
+     * One run of a stage, from start() to stop().
+     */
+    public static class Timer {
+        protected final Stage stage;
+        protected final long wallStart;
+        protected final long cpuStart;
+        protected final long allocatedStart;
+
+        protected Timer(Stage stage) {
+            this.stage = stage;
+            Metrics metrics = stage.metrics;
+            wallStart = null == metrics ? 0 : System.nanoTime();
+            cpuStart = null == metrics ? 0 : metrics.cpuNanos();
+            allocatedStart = null == metrics ? 0 : metrics.allocatedBytes();
+        }
+
+        public Stage stage() {
+            return stage;
+        }
+
+        public void stop() {
+            Metrics metrics = stage.metrics;
+            if (null == metrics) {
+                return;
+            }
+            stage.wallNanos.add(System.nanoTime() - wallStart);
+            stage.cpuNanos.add(metrics.cpuNanos() - cpuStart);
+            stage.allocatedBytes.add(metrics.allocatedBytes() - allocatedStart);
+            stage.calls.increment();
+        }
+    }
+
+    /**
+     * @return A table of every stage, one per line
+     */
+    public String summary() {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        out.printf("%-20s %-16s %7s %10s %10s %10s %12s %12s %12s %10s%n", "stage", "device", "calls", "wall ms", "cpu ms", "alloc MB", "rows", "bytes", "events", "anomalies");
+        for (Stage stage : getStages()) {
+            out.printf("%-20s %-16s %7d %10.1f %10.1f %10.1f %12d %12d %12d %10d%n",
+                stage.name, stage.device, stage.getCalls(),
+                stage.getWallNanos() / 1e6, stage.getCpuNanos() / 1e6, stage.getAllocatedBytes() / 1e6,
+                stage.getRows(), stage.getBytes(), stage.getEvents(), stage.getAnomalies());
+        }
+        out.flush();
+        return text.toString();
+    }
+
+    /**
+     * Writes every stage as a JSON object: {"stages":[{"stage":..,"device":..,"calls":..,...}]}.
+     * Times are in nanoseconds. Does not close out.
+     */
+    public void writeJson(Writer out) throws IOException {
+        out.write("{\"stages\":[");
+        boolean first = true;
+        for (Stage stage : getStages()) {
+            out.write(first ? "\n" : ",\n");
+            first = false;
+            out.write("{\"stage\":" + quote(stage.name) + ",\"device\":" + quote(stage.device) +
+                ",\"calls\":" + stage.getCalls() + ",\"wallNanos\":" + stage.getWallNanos() +
+                ",\"cpuNanos\":" + stage.getCpuNanos() + ",\"allocatedBytes\":" + stage.getAllocatedBytes() +
+                ",\"rows\":" + stage.getRows() + ",\"bytes\":" + stage.getBytes() +
+                ",\"events\":" + stage.getEvents() + ",\"anomalies\":" + stage.getAnomalies() + "}");
+        }
+        out.write("\n]}\n");
+        out.flush();
+    }
+
+    protected static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0;i < value.length();++i) {
+            char c = value.charAt(i);
+            if ('"' == c || '\\' == c) {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int)c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,130 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import java.util.Arrays;
+
+/**
+ * Every RSSI reading of one transmitter by one receiver, as primitive arrays in time order.
+ *
+ * Built by RssiSeriesMatrix. Read only once built: getTimes() and getRssi() return the
+ * arrays themselves, rather than copies, and must not be modified.
+ */
+public class RssiSeries {
+    public final TestDevice receiver;
+    public final TestDevice transmitter;
+    protected final long[] times;
+    protected final float[] rssi;
+
+    protected RssiSeries(TestDevice receiver, TestDevice transmitter, long[] times, float[] rssi) {
+        this.receiver = receiver;
+        this.transmitter = transmitter;
+        this.times = times;
+        this.rssi = rssi;
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public boolean isEmpty() {
+        return 0 == times.length;
+    }
+
+    /**
+     * @return When reading i was taken, in epoch milliseconds
+     */
+    public long timeAt(int i) {
+        return times[i];
+    }
+
+    public float rssiAt(int i) {
+        return rssi[i];
+    }
+
+    /**
+     * @return Every reading time, in epoch milliseconds, in ascending order. Do not modify
+     */
+    public long[] getTimes() {
+        return times;
+    }
+
+    /**
+     * @return The RSSI of each reading, at the same index as its time. Do not modify
+     */
+    public float[] getRssi() {
+        return rssi;
+    }
+
+    /**
+     * @param time Epoch milliseconds
+     * @return The index of the first reading at or after time, or size() if there is none
+     */
+    public int indexAtOrAfter(long time) {
+        int low = 0;
+        int high = times.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Collects one pair's readings whilst a receiver's logs are read.
+     */
+    protected static class Builder {
+        protected final TestDevice receiver;
+        protected final TestDevice transmitter;
+        protected long[] times = new long[16];
+        protected float[] rssi = new float[16];
+        protected int size = 0;
+        protected boolean ordered = true;
+
+        protected Builder(TestDevice receiver, TestDevice transmitter) {
+            this.receiver = receiver;
+            this.transmitter = transmitter;
+        }
+
+        protected void add(long time, float value) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                rssi = Arrays.copyOf(rssi, size * 2);
+            }
+            if (size > 0 && time < times[size - 1]) {
+                ordered = false;
+            }
+            times[size] = time;
+            rssi[size] = value;
+            ++size;
+        }
+
+        /**
+         * Trims the arrays to size, putting readings into time order if the log was not.
+         * Readings at the same time keep their log order.
+         */
+        protected RssiSeries build() {
+            long[] builtTimes = Arrays.copyOf(times, size);
+            float[] builtRssi = Arrays.copyOf(rssi, size);
+            if (!ordered) {
+                Integer[] order = new Integer[size];
+                for (int i = 0;i < size;++i) {
+                    order[i] = i;
+                }
+                // Stable, so equal times stay in log order
+                Arrays.sort(order, (a, b) -> Long.compare(times[a], times[b]));
+                for (int i = 0;i < size;++i) {
+                    builtTimes[i] = times[order[i]];
+                    builtRssi[i] = rssi[order[i]];
+                }
+            }
+            return new RssiSeries(receiver, transmitter, builtTimes, builtRssi);
+        }
+    }
+}
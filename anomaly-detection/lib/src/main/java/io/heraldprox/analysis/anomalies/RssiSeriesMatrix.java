@@ -0,0 +1,194 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * The RSSI readings (ContactMeasure events) of a test, as an RssiSeries per receiver and
+ * transmitter pair of test devices.
+ *
+ * Built in one pass over each receiver's contacts, with the addresses read linked to
+ * transmitters by the Correlator. Receivers are read in parallel, as each only adds to its
+ * own row of the matrix. Detectors that only need the time and RSSI of each reading
+ * should use Correlator.getRssiSeries(), which builds this once and holds on to it, rather
+ * than reading the logs and looking up addresses themselves.
+ *
+ * Readings whose address is not linked to a test device, or that are not RSSI values, are
+ * left out. Holds the readings read when it was built, so it is not updated when following
+ * a test (See Correlator.readAppendedAddresses).
+ */
+public class RssiSeriesMatrix {
+    protected static final Set<EventType> TYPES = EnumSet.of(EventType.ContactMeasure);
+
+    // In folder order. series[receiver][transmitter] indexes match this
+    protected final TestDevice[] devices;
+    protected final Map<TestDevice,Integer> indexes = new HashMap<TestDevice,Integer>();
+    protected final RssiSeries[][] series;
+
+    protected RssiSeriesMatrix(TestDevice[] devices, RssiSeries[][] series) {
+        this.devices = devices;
+        this.series = series;
+        for (int i = 0;i < devices.length;++i) {
+            indexes.put(devices[i], i);
+        }
+    }
+
+    /**
+     * Reads every receiver's RSSI readings.
+     *
+     * @param correlator Links addresses to devices, and gives the device folders to read
+     * @param folders The device folders of the test, normally those the correlator was given
+     * @param metrics Records the "series" stage per receiver
+     */
+    public static RssiSeriesMatrix build(Correlator correlator, Collection<DeviceFolder> folders, Metrics metrics) {
+        final List<DeviceFolder> ordered = new ArrayList<DeviceFolder>(folders);
+        final TestDevice[] devices = new TestDevice[ordered.size()];
+        for (int i = 0;i < devices.length;++i) {
+            devices[i] = ordered.get(i).getDevice();
+        }
+        // Fetched once, and before reading in parallel, so it is only built on one thread
+        final DeviceAddressIndex addresses = correlator.getAddressIndex();
+        final RssiSeries[][] series = new RssiSeries[devices.length][];
+        IntStream.range(0, devices.length).parallel().forEach(r -> {
+            Metrics.Stage stage = metrics.stage("series", ordered.get(r).getFolder().getName());
+            Metrics.Timer timer = stage.start();
+            series[r] = readReceiver(ordered.get(r), r, devices, addresses, stage);
+            timer.stop();
+        });
+        return new RssiSeriesMatrix(devices, series);
+    }
+
+    /**
+     * @return One row of the matrix: the series of every device, as read by devices[r]
+     */
+    protected static RssiSeries[] readReceiver(DeviceFolder df, int r, TestDevice[] devices, DeviceAddressIndex addresses, Metrics.Stage stage) {
+        TestDevice receiver = devices[r];
+        HashMap<TestDevice,Integer> indexes = new HashMap<TestDevice,Integer>();
+        RssiSeries.Builder[] builders = new RssiSeries.Builder[devices.length];
+        for (int t = 0;t < devices.length;++t) {
+            indexes.put(devices[t], t);
+            builders[t] = new RssiSeries.Builder(receiver, devices[t]);
+        }
+        SymbolTable from = df.getSymbols();
+        long visited = 0;
+        long added = 0;
+        for (EventGroup eg : df.getEventGroups()) {
+            if (!eg.getSummary().types.contains(EventType.ContactMeasure)) {
+                continue;
+            }
+            EventSource source = eg.source;
+            EventList events = source.events();
+            if (null == events) {
+                // Streaming source, so read forwards with a cursor instead
+                EventCursor cursor = source.query(TYPES, Long.MIN_VALUE, Long.MAX_VALUE);
+                for (Event next = cursor.next();null != next;next = cursor.next()) {
+                    ++visited;
+                    if (add(builders, indexes, receiver, addresses.get(from, next.addressCode()), next.occurredAt(), next.rssi())) {
+                        ++added;
+                    }
+                }
+                continue;
+            }
+            for (int index : source.indexesOfType(EventType.ContactMeasure)) {
+                ++visited;
+                long line = events.startLineAt(index);
+                if (add(builders, indexes, receiver, addresses.get(from, source.addressCode(line)), events.occurredAt(index), source.rssi(line))) {
+                    ++added;
+                }
+            }
+        }
+        stage.addEvents(visited);
+        stage.addRows(added);
+
+        RssiSeries[] row = new RssiSeries[devices.length];
+        for (int t = 0;t < devices.length;++t) {
+            row[t] = builders[t].build();
+        }
+        return row;
+    }
+
+    protected static boolean add(RssiSeries.Builder[] builders, Map<TestDevice,Integer> indexes, TestDevice receiver, TestDevice transmitter, long time, double rssi) {
+        if (null == transmitter || receiver == transmitter || Double.isNaN(rssi)) {
+            return false;
+        }
+        Integer t = indexes.get(transmitter);
+        if (null == t) {
+            return false; // linked to a device outside these folders
+        }
+        builders[t].add(time, (float)rssi);
+        return true;
+    }
+
+    /**
+     * @return Every device in the test, in folder order
+     */
+    public List<TestDevice> getDevices() {
+        List<TestDevice> list = new ArrayList<TestDevice>(devices.length);
+        Collections.addAll(list, devices);
+        return list;
+    }
+
+    /**
+     * @return The readings of transmitter by receiver, empty if there were none (including a
+     * device and itself), or null if either device is not in the test
+     */
+    public RssiSeries get(TestDevice receiver, TestDevice transmitter) {
+        Integer r = indexes.get(receiver);
+        Integer t = indexes.get(transmitter);
+        if (null == r || null == t) {
+            return null;
+        }
+        return series[r][t];
+    }
+
+    /**
+     * @return The non empty series read by receiver, in folder order of the transmitter
+     */
+    public List<RssiSeries> getByReceiver(TestDevice receiver) {
+        List<RssiSeries> found = new ArrayList<RssiSeries>();
+        Integer r = indexes.get(receiver);
+        if (null != r) {
+            for (RssiSeries s : series[r]) {
+                if (!s.isEmpty()) {
+                    found.add(s);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return Every non empty series, by receiver then transmitter in folder order
+     */
+    public List<RssiSeries> getAll() {
+        List<RssiSeries> found = new ArrayList<RssiSeries>();
+        for (TestDevice receiver : devices) {
+            found.addAll(getByReceiver(receiver));
+        }
+        return found;
+    }
+
+    /**
+     * @return The total number of readings across every series
+     */
+    public long size() {
+        long total = 0;
+        for (RssiSeries[] row : series) {
+            for (RssiSeries s : row) {
+                total += s.size();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,54 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import java.util.Date;
+
+/**
+ * A Detector that works by visiting events, so that it can share a single read of each
+ * source with other detectors (See DetectorEngine).
+ */
+public interface ScanDetector extends Detector {
+    /**
+     * Starts looking for anomalies in the events logged by one device.
+     * 
+     * @param testRun The test the device is part of
+     * @param receiver The device whose events will be visited
+     * @param startBound The start of the period to report anomalies for
+     * @param endBound The end of the period to report anomalies for
+     * @return State for this device's scan. Called for each device in turn
+     */
+    public DetectorScan startScan(TestFolder testRun, DeviceFolder receiver, Date startBound, Date endBound);
+
+    /**
+     * Whether each device's scan keeps all of its state to itself, only reading state shared
+     * with other scans. If so the engine may scan several devices at once (See
+     * DetectorEngine.setParallelism).
+     * 
+     * @return false by default, so devices are scanned one after another
+     */
+    public default boolean isPerReceiver() {
+        return false;
+    }
+
+    /**
+     * Whether its scans can follow a test as it is logged (See DetectorFollower), by handing
+     * over anomalies as they are found with DetectorScan.takeFound() and ongoing().
+     * DetectorEngine.follow only runs detectors that can.
+     * 
+     * @return false by default, as scans otherwise only report anomalies from finish()
+     */
+    public default boolean canFollow() {
+        return false;
+    }
+
+    /**
+     * Called when following a test as it is logged (See DetectorFollower), once lines appended
+     * to every device's logs have been read, and before their events are visited. E.g. to
+     * learn the addresses devices have moved to.
+     */
+    public default void logsAppended() {
+    }
+}
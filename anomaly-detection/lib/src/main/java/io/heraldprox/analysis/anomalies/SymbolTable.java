@@ -0,0 +1,96 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary encoding for the repetitive text values in log files (sensor names,
+ * MAC addresses, broadcast IDs, RSSI data values).
+ * 
+ * Each distinct value is given a dense int code the first time it is seen. Looking up
+ * an existing value does not lock, so sources may be parsed on several threads at once.
+ * 
+ * RSSI data values (E.g. "RSSI:-42.0") are decoded once per distinct value, so that
+ * rssi() is just an array read.
+ */
+public class SymbolTable {
+    protected final ConcurrentHashMap<String,Integer> codes = new ConcurrentHashMap<String,Integer>();
+    protected volatile String[] symbols = new String[64];
+    protected volatile double[] rssiValues = new double[64];
+    protected volatile int size = 0;
+
+    public SymbolTable() {
+        intern(""); // Blank is always code 0
+    }
+
+    /**
+     * @param value The text to encode
+     * @return The code for this value, assigning a new one if not seen before
+     */
+    public int intern(String value) {
+        Integer existing = codes.get(value);
+        if (null != existing) {
+            return existing.intValue();
+        }
+        synchronized (this) {
+            existing = codes.get(value);
+            if (null != existing) {
+                return existing.intValue();
+            }
+            int code = size;
+            if (code == symbols.length) {
+                rssiValues = Arrays.copyOf(rssiValues, code * 2);
+                symbols = Arrays.copyOf(symbols, code * 2);
+            }
+            rssiValues[code] = parseRssi(value);
+            symbols[code] = value;
+            size = code + 1;
+            codes.put(value, code);
+            return code;
+        }
+    }
+
+    /**
+     * @return The code for this value, or -1 if it has never been interned
+     */
+    public int code(String value) {
+        Integer existing = codes.get(value);
+        return null == existing ? -1 : existing.intValue();
+    }
+
+    public String symbol(int code) {
+        return symbols[code];
+    }
+
+    /**
+     * @return The RSSI held in this value (E.g. -42.0 for "RSSI:-42.0"), or NaN if it is not an RSSI value
+     */
+    public double rssi(int code) {
+        return rssiValues[code];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    protected static double parseRssi(String value) {
+        final String prefix = "RSSI:";
+        if (!value.startsWith(prefix)) {
+            return Double.NaN;
+        }
+        // May be followed by other values, E.g. RSSI:-42.0[BLETransmitPower:12.0]
+        int end = prefix.length();
+        while (end < value.length() && ("-+.".indexOf(value.charAt(end)) >= 0 || Character.isDigit(value.charAt(end)))) {
+            end++;
+        }
+        try {
+            return Double.parseDouble(value.substring(prefix.length(), end));
+        } catch (NumberFormatException nfe) {
+            return Double.NaN;
+        }
+    }
+}
@@ -6,11 +6,24 @@ package io.heraldprox.analysis.anomalies;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.Closeable;
 import java.io.File;
 
-public class TestFolder {
+public class TestFolder implements Closeable {
     File folder;
     List<DeviceFolder> folders = new ArrayList<DeviceFolder>();
+    // Shared by all devices, so addresses and IDs have the same code in every device's data
+    SymbolTable symbols = new SymbolTable();
+    Metrics metrics = Metrics.NOOP;
 
     public TestFolder(File folder) {
         this.folder = folder;
@@ -27,17 +40,47 @@ public class TestFolder {
         if (null == files) {
             return;
         }
+        // listFiles() has no defined order, so sort to give the same folder (and output) order every run
+        Arrays.sort(files);
         for (int i = 0;i < files.length;++i) {
             if (files[i].isDirectory()) {
-                folders.add(new DeviceFolder(files[i]));
+                folders.add(new DeviceFolder(files[i], symbols));
             }
         }
     }
 
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
     public List<DeviceFolder> getDeviceFolders() {
         return folders;
     }
 
+    /**
+     * Records the load, and is given to every device folder (See Metrics). Set before loading.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        for (DeviceFolder df : folders) {
+            df.setMetrics(metrics);
+        }
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Releases the file handles held by every device folder (See DeviceFolder.close).
+     */
+    @Override
+    public void close() {
+        for (DeviceFolder df : folders) {
+            df.close();
+        }
+    }
+
     public DeviceFolder deviceFolderByFolderName(String folderName) {
         for (DeviceFolder df : folders) {
             if (df.getFolder().getName().equals(folderName)) {
@@ -46,4 +89,95 @@ public class TestFolder {
         }
         return null;
     }
+
+    /**
+     * Eagerly reads all device folders in parallel, rather than one at a time on first use.
+     * 
+     * @param parallelism Maximum number of folders to read at once
+     * @param listener Told as each folder completes. May be null
+     * @return Failures for each folder that could not be fully read
+     */
+    public LoadReport load(int parallelism, LoadListener listener) {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try {
+            return load(pool, listener);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Eagerly reads all device folders using the given executor. Any ExecutorService
+     * may be used, E.g. a ForkJoinPool or a virtual thread per task executor.
+     * 
+     * @param executor Runs each folder's load. Not shut down by this method
+     * @param listener Told as each folder completes. May be null
+     * @return Failures for each folder that could not be fully read
+     */
+    public LoadReport load(ExecutorService executor, LoadListener listener) {
+        final long started = System.nanoTime();
+        Metrics.Timer timer = metrics.stage("load").start();
+        final int total = folders.size();
+        final AtomicInteger completed = new AtomicInteger(0);
+        List<Callable<List<Exception>>> tasks = new ArrayList<Callable<List<Exception>>>();
+        for (DeviceFolder df : folders) {
+            tasks.add(() -> {
+                List<Exception> failures;
+                try {
+                    failures = df.load();
+                } catch (RuntimeException re) {
+                    failures = new ArrayList<Exception>();
+                    failures.add(re);
+                }
+                if (null != listener) {
+                    listener.loaded(df, completed.incrementAndGet(), total);
+                }
+                return failures;
+            });
+        }
+
+        LoadReport report = new LoadReport();
+        try {
+            List<Future<List<Exception>>> results = executor.invokeAll(tasks);
+            for (int i = 0;i < results.size();++i) {
+                List<Exception> failures;
+                try {
+                    failures = results.get(i).get();
+                } catch (ExecutionException ee) {
+                    failures = new ArrayList<Exception>();
+                    failures.add(ee);
+                }
+                if (!failures.isEmpty()) {
+                    report.failures.put(folders.get(i), failures);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            report.interrupted = true;
+        }
+        report.elapsedNanos = System.nanoTime() - started;
+        timer.stop();
+        return report;
+    }
+
+    /**
+     * Progress callback for load(). May be called from any thread.
+     */
+    public interface LoadListener {
+        void loaded(DeviceFolder folder, int completed, int total);
+    }
+
+    /**
+     * The outcome of load()
+     */
+    public static class LoadReport {
+        /** Folders which failed to load, in folder order, with the reasons why */
+        public final Map<DeviceFolder,List<Exception>> failures = new LinkedHashMap<DeviceFolder,List<Exception>>();
+        public boolean interrupted = false;
+        public long elapsedNanos = 0;
+
+        public boolean isSuccessful() {
+            return failures.isEmpty() && !interrupted;
+        }
+    }
 }
@@ -0,0 +1,86 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.columns;
+
+import java.util.Arrays;
+
+/**
+ * Growable column of primitive ints, stored as a list of fixed size chunks.
+ * 
+ * Chunks are never copied once full, so appending millions of values never needs a
+ * single huge array or a full copy. The last chunk starts small and doubles until
+ * it reaches the chunk size, so short lists (E.g. anomaly evidence) stay small.
+ */
+public class IntColumn {
+    public static final int CHUNK_SHIFT = 14;
+    public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    public static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    protected static final int INITIAL_CAPACITY = 16;
+
+    protected int[][] chunks = new int[0][];
+    protected int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int index) {
+        return chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    public void set(int index, int value) {
+        chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK] = value;
+    }
+
+    public void add(int value) {
+        ensureCapacity(size + 1);
+        chunks[size >>> CHUNK_SHIFT][size & CHUNK_MASK] = value;
+        size++;
+    }
+
+    /**
+     * Empties the column but keeps its chunks, so that refilling it allocates nothing.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Copies the column into a single array. Intended for small columns and for persistence.
+     */
+    public int[] toArray() {
+        int[] result = new int[size];
+        for (int chunk = 0;chunk < chunks.length && (chunk << CHUNK_SHIFT) < size;++chunk) {
+            int from = chunk << CHUNK_SHIFT;
+            System.arraycopy(chunks[chunk], 0, result, from, Math.min(CHUNK_SIZE, size - from));
+        }
+        return result;
+    }
+
+    protected void ensureCapacity(int required) {
+        int lastChunk = (required - 1) >>> CHUNK_SHIFT;
+        if (lastChunk >= chunks.length) {
+            // Fill out all chunks before the new last one, and start the new last chunk small
+            int oldLength = chunks.length;
+            chunks = Arrays.copyOf(chunks, lastChunk + 1);
+            for (int i = oldLength;i < lastChunk;++i) {
+                chunks[i] = new int[CHUNK_SIZE];
+            }
+            if (oldLength > 0 && oldLength <= lastChunk && chunks[oldLength - 1].length < CHUNK_SIZE) {
+                chunks[oldLength - 1] = Arrays.copyOf(chunks[oldLength - 1], CHUNK_SIZE);
+            }
+            chunks[lastChunk] = new int[Math.min(CHUNK_SIZE, INITIAL_CAPACITY)];
+        }
+        int needed = ((required - 1) & CHUNK_MASK) + 1;
+        int[] last = chunks[lastChunk];
+        if (needed > last.length) {
+            int capacity = last.length;
+            while (capacity < needed) {
+                capacity <<= 1;
+            }
+            chunks[lastChunk] = Arrays.copyOf(last, Math.min(CHUNK_SIZE, capacity));
+        }
+    }
+}
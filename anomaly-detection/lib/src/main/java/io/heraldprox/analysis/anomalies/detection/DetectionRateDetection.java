@@ -0,0 +1,197 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.detection;
+
+import io.heraldprox.analysis.anomalies.Anomaly;
+import io.heraldprox.analysis.anomalies.AnomalySink;
+import io.heraldprox.analysis.anomalies.Correlator;
+import io.heraldprox.analysis.anomalies.Detector;
+import io.heraldprox.analysis.anomalies.Evidence;
+import io.heraldprox.analysis.anomalies.RssiSeries;
+import io.heraldprox.analysis.anomalies.TestDevice;
+import io.heraldprox.analysis.anomalies.TestFolder;
+
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds periods when a receiver read a transmitter's RSSI much less often than it normally
+ * did, even if no single gap between readings was long (See RssiGapDetection).
+ *
+ * For each pair of devices the readings are counted per minute, and summed over a window of
+ * whole minutes that slides along a minute at a time. A window is flagged when its readings
+ * per minute are below a fraction of the pair's own baseline: its mean readings per minute
+ * from its first to its last reading within the bounds. Overlapping and adjacent flagged
+ * windows are reported as one anomaly, from the start of the first to the end of the last.
+ *
+ * Runs over each pair's RssiSeries (See Correlator.getRssiSeries) in a single pass, with the
+ * per minute counts of the current window held in a ring buffer, so each reading costs O(1).
+ * Minutes with no readings are skipped over once a window is empty. Pairs with no readings
+ * within the bounds, or whose readings span less than one window, are not reported.
+ *
+ * The series hold no log lines, so anomalies have no evidence. Not run when following a
+ * test, as it does not visit events (See DetectorFollower).
+ */
+public class DetectionRateDetection implements Detector {
+    protected static final long MINUTE = 60 * 1000;
+    // Immutable, so shared by every describe() call. Local time, as RssiGapDetection
+    protected static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss", Locale.UK).withZone(ZoneId.systemDefault());
+
+    final Correlator correlator;
+    final int windowMinutes;
+    final double minimumFraction;
+
+    /**
+     * @param correlator Gives the RSSI series of each pair of devices
+     * @param windowMilliseconds Length of the sliding window, rounded up to whole minutes
+     * @param minimumFractionOfBaseline Windows with fewer readings per minute than this fraction of the pair's baseline are flagged, E.g. 0.5
+     */
+    public DetectionRateDetection(Correlator correlator, long windowMilliseconds, double minimumFractionOfBaseline) {
+        if (windowMilliseconds <= 0 || minimumFractionOfBaseline <= 0) {
+            throw new IllegalArgumentException("Window and fraction of baseline must be positive");
+        }
+        long minutes = windowMilliseconds / MINUTE + (0 == windowMilliseconds % MINUTE ? 0 : 1);
+        if (minutes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Window of " + minutes + " minutes is too long");
+        }
+        this.correlator = correlator;
+        this.windowMinutes = (int)minutes;
+        this.minimumFraction = minimumFractionOfBaseline;
+    }
+
+    @Override
+    public Collection<Anomaly> detect(TestFolder testRun, Date startBound, Date endBound) {
+        final List<Anomaly> anomalies = new ArrayList<Anomaly>();
+        detect(testRun, startBound, endBound, anomalies::add);
+        return anomalies;
+    }
+
+    /**
+     * Passes each anomaly on as its pair's pass ends it, by receiver then transmitter in folder order.
+     */
+    @Override
+    public void detect(TestFolder testRun, Date startBound, Date endBound, AnomalySink sink) {
+        // Reused for every pair
+        int[] ring = new int[windowMinutes];
+        for (RssiSeries series : correlator.getRssiSeries().getAll()) {
+            scan(series, startBound.getTime(), endBound.getTime(), ring, sink);
+        }
+    }
+
+    /**
+     * One pass over one pair's readings within [start, end].
+     */
+    protected void scan(RssiSeries series, long start, long end, int[] ring, AnomalySink sink) {
+        long[] times = series.getTimes();
+        int first = series.indexAtOrAfter(start);
+        int last = series.indexAtOrAfter(end + 1); // exclusive
+        if (first >= last) {
+            return;
+        }
+        long firstMinute = Math.floorDiv(times[first], MINUTE);
+        long lastReadingMinute = Math.floorDiv(times[last - 1], MINUTE);
+        // The last whole minute before endBound
+        long lastMinute = Math.floorDiv(end, MINUTE) - 1;
+        long spanMinutes = lastReadingMinute - firstMinute + 1;
+        if (spanMinutes < windowMinutes || lastMinute < firstMinute + windowMinutes - 1) {
+            return; // too short to have a baseline to compare windows with
+        }
+        double baseline = (double)(last - first) / spanMinutes;
+        // A window is flagged if it holds fewer readings than this
+        double minimumCount = minimumFraction * baseline * windowMinutes;
+
+        Arrays.fill(ring, 0);
+        int inWindow = 0;
+        int i = first;
+        // Open run of overlapping flagged windows, as minutes, with the fewest readings of any of its windows
+        long runFrom = -1;
+        long runTo = -1;
+        int runFewest = 0;
+        for (long minute = firstMinute;minute <= lastMinute;++minute) {
+            int count = 0;
+            while (i < last && Math.floorDiv(times[i], MINUTE) == minute) {
+                ++count;
+                ++i;
+            }
+            int slot = (int)Math.floorMod(minute, (long)windowMinutes);
+            inWindow += count - ring[slot];
+            ring[slot] = count;
+
+            long throughMinute = minute;
+            if (0 == inWindow) {
+                // Every window up to the one before the next reading is empty too, so skip over them. The ring is all 0 already
+                long nextMinute = i < last ? Math.floorDiv(times[i], MINUTE) : lastMinute + 1;
+                throughMinute = Math.max(minute, Math.min(nextMinute - 1, lastMinute));
+            }
+            if (throughMinute < firstMinute + windowMinutes - 1) {
+                minute = throughMinute;
+                continue; // first window not yet full
+            }
+            if (inWindow < minimumCount) {
+                long windowFrom = Math.max(minute, firstMinute + windowMinutes - 1) - windowMinutes + 1;
+                if (runFrom >= 0 && windowFrom > runTo) {
+                    // Apart from the run so far, so that is complete
+                    sink.accept(anomaly(series, runFrom, runTo, runFewest, baseline, start, end));
+                    runFrom = -1;
+                }
+                if (runFrom < 0) {
+                    runFrom = windowFrom;
+                    runFewest = inWindow;
+                }
+                runTo = throughMinute + 1;
+                runFewest = Math.min(runFewest, inWindow);
+            } else if (runFrom >= 0 && throughMinute + 2 - windowMinutes > runTo) {
+                // No later window can overlap the run, so pass it on now
+                sink.accept(anomaly(series, runFrom, runTo, runFewest, baseline, start, end));
+                runFrom = -1;
+            }
+            minute = throughMinute;
+        }
+        if (runFrom >= 0) {
+            sink.accept(anomaly(series, runFrom, runTo, runFewest, baseline, start, end));
+        }
+    }
+
+    protected RateAnomaly anomaly(RssiSeries series, long fromMinute, long toMinute, int fewest, double baseline, long start, long end) {
+        Date from = new Date(Math.max(start, fromMinute * MINUTE));
+        Date to = new Date(Math.min(end, toMinute * MINUTE));
+        return new RateAnomaly(this, series.receiver, series.transmitter, from, to, (double)fewest / windowMinutes, baseline);
+    }
+
+    /**
+     * An anomaly that also holds the lowest rate of its windows, and the pair's baseline.
+     */
+    public static class RateAnomaly extends Anomaly {
+        /** Fewest readings per minute of any window in this anomaly */
+        public final double lowestRate;
+        /** The pair's mean readings per minute */
+        public final double baselineRate;
+
+        public RateAnomaly(Detector detectedBy, TestDevice receiver, TestDevice transmitter, Date from, Date to, double lowestRate, double baselineRate) {
+            super(detectedBy, receiver, transmitter, from, to, Evidence.NONE);
+            this.lowestRate = lowestRate;
+            this.baselineRate = baselineRate;
+        }
+    }
+
+    @Override
+    public String describe(Anomaly anomaly) {
+        String rates = "";
+        if (anomaly instanceof RateAnomaly) {
+            RateAnomaly rate = (RateAnomaly)anomaly;
+            rates = " to " + String.format(Locale.UK, "%.2f", rate.lowestRate) + " per minute (normally " + String.format(Locale.UK, "%.2f", rate.baselineRate) + ")";
+        }
+        return "Detection rate fell for device " + anomaly.transmitter.getDeviceTypeString() +
+            " by device " + anomaly.receiver.getDeviceTypeString() + rates +
+            " for " + ((anomaly.to.getTime()-anomaly.from.getTime())/1000) +
+            "s from " + DATE_FORMATTER.format(anomaly.from.toInstant());
+    }
+}
@@ -1,4 +1,4 @@
-//  Copyright 2022 Herald Project Contributors
+//  Copyright 2022-2023 Herald Project Contributors
 //  SPDX-License-Identifier: Apache-2.0
 //
 
@@ -7,24 +7,37 @@ package io.heraldprox.analysis.anomalies.detection;
 import java.util.Date;
 
 import io.heraldprox.analysis.anomalies.Anomaly;
+import io.heraldprox.analysis.anomalies.AnomalySink;
 import io.heraldprox.analysis.anomalies.Correlator;
-import io.heraldprox.analysis.anomalies.Detector;
+import io.heraldprox.analysis.anomalies.DetectorEngine;
+import io.heraldprox.analysis.anomalies.DetectorScan;
+import io.heraldprox.analysis.anomalies.DeviceAddressIndex;
 import io.heraldprox.analysis.anomalies.DeviceFolder;
-import io.heraldprox.analysis.anomalies.EventGroup;
 import io.heraldprox.analysis.anomalies.EventType;
 import io.heraldprox.analysis.anomalies.Event;
 import io.heraldprox.analysis.anomalies.EventList;
+import io.heraldprox.analysis.anomalies.Evidence;
+import io.heraldprox.analysis.anomalies.ScanDetector;
 import io.heraldprox.analysis.anomalies.TestFolder;
 import io.heraldprox.analysis.anomalies.TestDevice;
 
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
-import java.text.SimpleDateFormat;
+import java.util.Map;
+import java.util.Set;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Locale;
 
-public class RssiGapDetection implements Detector {
+public class RssiGapDetection implements ScanDetector {
+    protected static final Set<EventType> TYPES = EnumSet.of(EventType.ContactMeasure);
+    // Immutable, so shared by every describe() call. Local time, as SimpleDateFormat printed
+    protected static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss", Locale.UK).withZone(ZoneId.systemDefault());
+
     final long interval;
     final Correlator correlator;
 
@@ -35,86 +48,211 @@ public class RssiGapDetection implements Detector {
 
     @Override
     public Collection<Anomaly> detect(TestFolder testRun, Date startBound, Date endBound) {
-        ArrayList<Anomaly> anomalies = new ArrayList<Anomaly>();
+        return new DetectorEngine(this).detect(testRun, startBound, endBound);
+    }
+
+    @Override
+    public void detect(TestFolder testRun, Date startBound, Date endBound, AnomalySink sink) {
+        new DetectorEngine(this).detect(testRun, startBound, endBound, sink);
+    }
+
+    @Override
+    public DetectorScan startScan(TestFolder testRun, DeviceFolder receiver, Date startBound, Date endBound) {
+        return new GapScan(testRun, receiver, startBound, endBound);
+    }
+
+    /**
+     * Each receiver has its own last seen times, so receivers can be scanned independently.
+     */
+    @Override
+    public boolean isPerReceiver() {
+        return true;
+    }
+
+    /**
+     * Gaps are handed over as they end, and ongoing ones grow with each poll.
+     */
+    @Override
+    public boolean canFollow() {
+        return true;
+    }
+
+    /**
+     * Devices change address as the test goes on, so link any new addresses before visiting.
+     */
+    @Override
+    public void logsAppended() {
+        correlator.readAppendedAddresses();
+    }
+
+    /**
+     * For one receiver, loops through the contactLog for all RSSI elements, and maintains a lastSeen for each target Device
+     */
+    protected class GapScan implements DetectorScan {
+        final DeviceFolder df;
+        final TestDevice receiver;
+        final List<DeviceFolder> folders;
+        final Date startBound;
+        final Date endBound;
+        final DeviceAddressIndex addresses;
+        final ArrayList<Anomaly> anomalies = new ArrayList<Anomaly>();
+        // Passed anomalies as they are found, rather than holding them in anomalies, if set
+        AnomalySink sink = null;
+        final Hashtable<TestDevice,Event> lastRssi = new Hashtable<TestDevice,Event>();
+
+        GapScan(TestFolder testRun, DeviceFolder df, Date startBound, Date endBound) {
+            this.df = df;
+            this.receiver = df.getDevice();
+            this.folders = testRun.getDeviceFolders();
+            this.startBound = startBound;
+            this.endBound = endBound;
+            // Fetched once, rather than per event
+            this.addresses = correlator.getAddressIndex();
+            // Create start times map
+            for (DeviceFolder tdf : folders) {
+                TestDevice transmitter = tdf.getDevice();
+                lastRssi.put(transmitter,new Event(new Date(0),EventType.ContactMeasure, null));
+            }
+        }
+
+        @Override
+        public Set<EventType> types() {
+            return TYPES;
+        }
+
+        /**
+         * Checks one RSSI reading against when its transmitter was last seen by this receiver.
+         */
+        @Override
+        public void visit(Event e) {
+            // See which test device this is for (by the Mac address)
+            TestDevice transmitter = addresses.get(df.getSymbols(), e.addressCode());
+            if (null == transmitter || receiver == transmitter) { // can happen if a partially mapped file
+                return;
+            }
+            // See when we last saw that device
+            Event last = lastRssi.get(transmitter);
+            // if non zero, and we're in the capture zone, add anomaly
+            if (e.occurredAt() >= (startBound.getTime() /*+ interval*/) && 
+                e.occurredAt() <= endBound.getTime() &&
+                last.occurredAt() != 0 && // Don't need this as we add interval to start time, above
+                (e.occurredAt() - last.occurredAt()) > interval) {
+                // Handle the case where we've interval or more into the test, and this is the FIRST RSSI
+                if (null != last.getPointer()) {
+                    found(new Anomaly(RssiGapDetection.this,receiver, transmitter, last.whenOccurred(), e.whenOccurred(), Evidence.of(e, last)));
+                }
+            }
 
-        // For each device, loop through the contactLog for all RSSI elements, and maintain a lastSeen for each target Device
+            // Increment last seen time
+            lastRssi.put(transmitter,e);
+        }
 
-        List<DeviceFolder> folders = testRun.getDeviceFolders();
-        // Create start times map
-        Hashtable<TestDevice,Event> lastRssi = new Hashtable<TestDevice,Event>();
-        for (DeviceFolder df : folders) {
-            TestDevice transmitter = df.getDevice();
-            lastRssi.put(transmitter,new Event(new Date(0),EventType.ContactMeasure, null));
+        /**
+         * Sets each transmitter's last seen event to its latest reading before the window,
+         * as if every earlier event had been read. Reads backwards, stopping once every
+         * transmitter has been found.
+         */
+        @Override
+        public void beforeWindow(EventList events, int fromIndex) {
+            if (null == events) {
+                return; // every event will be visited
+            }
+            Set<TestDevice> unseen = new HashSet<TestDevice>();
+            for (Map.Entry<TestDevice,Event> last : lastRssi.entrySet()) {
+                if (null == last.getValue().getPointer() && receiver != last.getKey()) {
+                    unseen.add(last.getKey());
+                }
+            }
+            for (int i = events.previousIndexOfType(EventType.ContactMeasure, fromIndex);i >= 0 && !unseen.isEmpty();i = events.previousIndexOfType(EventType.ContactMeasure, i)) {
+                TestDevice transmitter = addresses.get(df.getSymbols(), events.sourceAt(i).addressCode(events.startLineAt(i)));
+                if (null != transmitter && unseen.remove(transmitter)) {
+                    lastRssi.put(transmitter, events.atIndex(i));
+                }
+            }
         }
 
-        // Process events
-        for (DeviceFolder df : folders) {
-            TestDevice receiver = df.getDevice();
-            for (EventGroup eg : df.getEventGroups()) {
-                if (eg.getSummary().types.contains(EventType.ContactMeasure)) {
-                    Event e = eg.source.firstByType(EventType.ContactMeasure);
-                    while (null != e) {
-                        // See which test device this is for (by the Mac address)
-                        String rssiEventString = e.text();
-                        String[] parts = rssiEventString.split("[,]",-1);
-                        TestDevice transmitter = correlator.getDeviceByAddress(parts[1]);
-                        if (null != transmitter && receiver != transmitter) { // can happen if a partially mapped file
-                            // See when we last saw that device
-                            Event last = lastRssi.get(transmitter);
-                            // if non zero, and we're in the capture zone, add anomaly
-                            if (e.whenOccurred().getTime() >= (startBound.getTime() /*+ interval*/) && 
-                                e.whenOccurred().getTime() <= endBound.getTime() &&
-                                last.whenOccurred().getTime() != 0 && // Don't need this as we add interval to start time, above
-                                (e.whenOccurred().getTime() - last.whenOccurred().getTime()) > interval) {
-                                EventList evidence = new EventList();
-                                evidence.add(e);
-                                Date from = last.whenOccurred();
-                                // Handle the case where we've interval or more into the test, and this is the FIRST RSSI
-                                if (null == last.getPointer()) {
-                                    from = startBound;
-                                } else {
-                                    evidence.add(last);
-                                    anomalies.add(new Anomaly(this,receiver, transmitter, from, e.whenOccurred(), evidence));
-                                }
-                            }
-
-                            // Increment last seen time
-                            lastRssi.put(transmitter,e);
-                        }
-
-                        e = eg.source.nextByType(EventType.ContactMeasure);
-                    }
+        /**
+         * Every event after the window occurred after endBound. Reading all of them would only
+         * move a transmitter's last seen time past endBound, so that no gap is reported up to
+         * endBound. Reads forwards just until each transmitter that would get such a gap is found.
+         */
+        @Override
+        public void afterWindow(EventList events, int toIndex) {
+            if (null == events) {
+                return; // every event has been visited
+            }
+            Set<TestDevice> pending = new HashSet<TestDevice>();
+            for (Map.Entry<TestDevice,Event> last : lastRssi.entrySet()) {
+                if (null != last.getValue().getPointer() && (endBound.getTime() - last.getValue().occurredAt()) > interval) {
+                    pending.add(last.getKey());
+                }
+            }
+            for (int i = events.nextIndexOfType(EventType.ContactMeasure, toIndex);i < events.size() && !pending.isEmpty();i = events.nextIndexOfType(EventType.ContactMeasure, i + 1)) {
+                TestDevice transmitter = addresses.get(df.getSymbols(), events.sourceAt(i).addressCode(events.startLineAt(i)));
+                if (null != transmitter && receiver != transmitter && pending.remove(transmitter)) {
+                    lastRssi.put(transmitter, events.atIndex(i));
                 }
             }
+        }
+
+        @Override
+        public void setSink(AnomalySink sink) {
+            this.sink = sink;
+        }
+
+        protected void found(Anomaly anomaly) {
+            if (null == sink) {
+                anomalies.add(anomaly);
+            } else {
+                sink.accept(anomaly);
+            }
+        }
+
+        @Override
+        public Collection<Anomaly> finish() {
+            for (Anomaly anomaly : trailing(endBound)) {
+                found(anomaly);
+            }
+            return anomalies;
+        }
+
+        @Override
+        public Collection<Anomaly> takeFound() {
+            List<Anomaly> found = new ArrayList<Anomaly>(anomalies);
+            anomalies.clear();
+            return found;
+        }
+
+        /**
+         * Gaps from each transmitter's last reading up to now. Ended by its next reading.
+         */
+        @Override
+        public Collection<Anomaly> ongoing(Date now) {
+            return trailing(now);
+        }
 
+        protected List<Anomaly> trailing(Date end) {
+            List<Anomaly> found = new ArrayList<Anomaly>();
             for (DeviceFolder tdf : folders) {
                 TestDevice transmitter = tdf.getDevice();
 
                 // Check if lastSeen for each transmitter was before the end of the test, and if so, check the duration
                 // and see if we need another anomaly for that period too
                 Event last = lastRssi.get(transmitter);
-                if (null != last.getPointer() && (endBound.getTime() - last.whenOccurred().getTime()) > interval) {
-                    EventList evidence = new EventList();
-                    evidence.add(last);
-                    anomalies.add(new Anomaly(this,receiver, transmitter, last.whenOccurred(), endBound, evidence));
+                if (null != last.getPointer() && (end.getTime() - last.occurredAt()) > interval) {
+                    found.add(new Anomaly(RssiGapDetection.this,receiver, transmitter, last.whenOccurred(), end, Evidence.of(last)));
                 }
-
-                // Reset last seen before moving on to next device
-                lastRssi.put(transmitter,new Event(new Date(0),EventType.ContactMeasure, null));
             }
+            return found;
         }
-
-
-        return anomalies;
     }
 
     @Override
     public String describe(Anomaly anomaly) {
-        SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.UK);
         return "RSSI Gap detected for device " + anomaly.transmitter.getDeviceTypeString() + 
             " by device " + anomaly.receiver.getDeviceTypeString() + 
             " of length " + ((long)(anomaly.to.getTime()-anomaly.from.getTime())/1000) + 
-            "s from " + dateFormatter.format(anomaly.from) + 
+            "s from " + DATE_FORMATTER.format(anomaly.from.toInstant()) + 
             " with " + anomaly.evidence.size() + " events as evidence";
     }
     
@@ -0,0 +1,94 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.sinks;
+
+import io.heraldprox.analysis.anomalies.Anomaly;
+import io.heraldprox.analysis.anomalies.AnomalySink;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts anomalies rather than keeping them: in total, per detector, and per receiver and
+ * transmitter pair. Memory use depends only on the number of detectors and devices.
+ * If given a stream, writes a summary to it when closed.
+ */
+public class CountingAnomalySink implements AnomalySink {
+    protected final PrintWriter summary;
+    protected long count = 0;
+    protected long totalSeconds = 0;
+    protected long longestSeconds = 0;
+    protected final Map<String,Long> byDetector = new TreeMap<String,Long>();
+    protected final Map<String,Long> byDevices = new TreeMap<String,Long>();
+
+    public CountingAnomalySink() {
+        this.summary = null;
+    }
+
+    /**
+     * @param summary Where to write the summary on close()
+     */
+    public CountingAnomalySink(OutputStream summary) {
+        this.summary = new PrintWriter(new OutputStreamWriter(summary, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void accept(Anomaly anomaly) {
+        count++;
+        long seconds = WriterAnomalySink.durationSeconds(anomaly);
+        totalSeconds += seconds;
+        longestSeconds = Math.max(longestSeconds, seconds);
+        byDetector.merge(WriterAnomalySink.detector(anomaly), 1L, Long::sum);
+        byDevices.merge(WriterAnomalySink.name(anomaly.receiver) + " <- " + WriterAnomalySink.name(anomaly.transmitter), 1L, Long::sum);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The total length of all anomalies, in seconds
+     */
+    public long getTotalSeconds() {
+        return totalSeconds;
+    }
+
+    public long getLongestSeconds() {
+        return longestSeconds;
+    }
+
+    /**
+     * @return Counts by detector class name, E.g. RssiGapDetection
+     */
+    public Map<String,Long> getCountsByDetector() {
+        return byDetector;
+    }
+
+    /**
+     * @return Counts by "receiver <- transmitter" device names
+     */
+    public Map<String,Long> getCountsByDevices() {
+        return byDevices;
+    }
+
+    @Override
+    public void close() {
+        if (null == summary) {
+            return;
+        }
+        summary.println(count + " anomalies, " + totalSeconds + "s in total, longest " + longestSeconds + "s");
+        for (Map.Entry<String,Long> detector : byDetector.entrySet()) {
+            summary.println(detector.getKey() + ": " + detector.getValue());
+        }
+        for (Map.Entry<String,Long> devices : byDevices.entrySet()) {
+            summary.println(devices.getKey() + ": " + devices.getValue());
+        }
+        summary.flush();
+    }
+}
@@ -0,0 +1,62 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.sinks;
+
+import io.heraldprox.analysis.anomalies.Anomaly;
+
+import java.io.OutputStream;
+
+/**
+ * Writes anomalies as csv, with a header line before the first. Times are UTC, in ISO 8601
+ * form. Values holding a comma, quote or newline are quoted.
+ */
+public class CsvAnomalySink extends WriterAnomalySink {
+    public static final String HEADER = "detector,receiver,transmitter,from,to,durationSeconds,evidence,description";
+
+    protected final StringBuilder row = new StringBuilder(256);
+
+    public CsvAnomalySink(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    protected void header() {
+        line(HEADER);
+    }
+
+    @Override
+    protected String format(Anomaly anomaly) {
+        row.setLength(0);
+        value(detector(anomaly)).append(',');
+        value(name(anomaly.receiver)).append(',');
+        value(name(anomaly.transmitter)).append(',');
+        row.append(timestamp(anomaly.from)).append(',');
+        row.append(timestamp(anomaly.to)).append(',');
+        row.append(durationSeconds(anomaly)).append(',');
+        row.append(anomaly.evidence.size()).append(',');
+        value(anomaly.toString());
+        return row.toString();
+    }
+
+    protected StringBuilder value(String text) {
+        boolean quote = false;
+        for (int i = 0;i < text.length() && !quote;++i) {
+            char c = text.charAt(i);
+            quote = ',' == c || '"' == c || '\n' == c || '\r' == c;
+        }
+        if (!quote) {
+            return row.append(text);
+        }
+        row.append('"');
+        for (int i = 0;i < text.length();++i) {
+            char c = text.charAt(i);
+            if ('"' == c) {
+                row.append('"');
+            }
+            row.append(c);
+        }
+        return row.append('"');
+    }
+}
@@ -0,0 +1,74 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.sinks;
+
+import io.heraldprox.analysis.anomalies.Anomaly;
+
+import java.io.OutputStream;
+
+/**
+ * Writes each anomaly as a JSON object on its own line (JSON Lines), with the same fields
+ * as CsvAnomalySink plus the line number of each event of evidence.
+ */
+public class JsonLinesAnomalySink extends WriterAnomalySink {
+    protected final StringBuilder object = new StringBuilder(256);
+
+    public JsonLinesAnomalySink(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    protected String format(Anomaly anomaly) {
+        object.setLength(0);
+        object.append('{');
+        field("detector", detector(anomaly)).append(',');
+        field("receiver", name(anomaly.receiver)).append(',');
+        field("transmitter", name(anomaly.transmitter)).append(',');
+        field("from", timestamp(anomaly.from)).append(',');
+        field("to", timestamp(anomaly.to)).append(',');
+        object.append("\"durationSeconds\":").append(durationSeconds(anomaly)).append(',');
+        object.append("\"evidence\":").append(anomaly.evidence.size()).append(',');
+        // Line numbers within each event's source file, with the header as line 0
+        object.append("\"evidenceLines\":[");
+        for (int i = 0;i < anomaly.evidence.size();++i) {
+            object.append(0 == i ? "" : ",").append(anomaly.evidence.startLineAt(i));
+        }
+        object.append("],");
+        field("description", anomaly.toString());
+        object.append('}');
+        return object.toString();
+    }
+
+    protected StringBuilder field(String name, String value) {
+        object.append('"').append(name).append("\":\"");
+        for (int i = 0;i < value.length();++i) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    object.append("\\\"");
+                    break;
+                case '\\':
+                    object.append("\\\\");
+                    break;
+                case '\n':
+                    object.append("\\n");
+                    break;
+                case '\r':
+                    object.append("\\r");
+                    break;
+                case '\t':
+                    object.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        object.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        object.append(c);
+                    }
+            }
+        }
+        return object.append('"');
+    }
+}
@@ -0,0 +1,23 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.sinks;
+
+import io.heraldprox.analysis.anomalies.Anomaly;
+
+import java.io.OutputStream;
+
+/**
+ * Writes each anomaly as its detector describes it, one per line.
+ */
+public class TextAnomalySink extends WriterAnomalySink {
+    public TextAnomalySink(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    protected String format(Anomaly anomaly) {
+        return anomaly.toString();
+    }
+}
@@ -0,0 +1,107 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.sinks;
+
+import io.heraldprox.analysis.anomalies.Anomaly;
+import io.heraldprox.analysis.anomalies.AnomalySink;
+import io.heraldprox.analysis.anomalies.TestDevice;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+
+/**
+ * Writes each anomaly as one line of text, as it arrives. Output is buffered, and only
+ * flushed by flush() and close(). The stream is not closed, as it belongs to the caller.
+ */
+public abstract class WriterAnomalySink implements AnomalySink {
+    /** Shared by every sink, as it is immutable. E.g. 2022-11-29T22:23:42Z */
+    protected static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ISO_INSTANT;
+
+    protected final Writer out;
+    protected long count = 0;
+
+    protected WriterAnomalySink(OutputStream out) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    @Override
+    public void accept(Anomaly anomaly) {
+        if (0 == count) {
+            header();
+        }
+        count++;
+        line(format(anomaly));
+    }
+
+    /**
+     * Called before the first anomaly is written
+     */
+    protected void header() {
+    }
+
+    /**
+     * @return The line to write for the anomaly, without a newline
+     */
+    protected abstract String format(Anomaly anomaly);
+
+    protected void line(String text) {
+        try {
+            out.write(text);
+            out.write('\n');
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * @return The number of anomalies written so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void flush() {
+        try {
+            out.flush();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    protected static String timestamp(Date date) {
+        return null == date ? "" : TIMESTAMP.format(date.toInstant());
+    }
+
+    protected static String name(TestDevice device) {
+        return null == device ? "" : device.getDeviceTypeString();
+    }
+
+    /**
+     * @return The simple class name of the detector that found the anomaly, E.g. RssiGapDetection
+     */
+    protected static String detector(Anomaly anomaly) {
+        return null == anomaly.detectedBy ? "" : anomaly.detectedBy.getClass().getSimpleName();
+    }
+
+    protected static long durationSeconds(Anomaly anomaly) {
+        if (null == anomaly.from || null == anomaly.to) {
+            return 0;
+        }
+        return (anomaly.to.getTime() - anomaly.from.getTime()) / 1000;
+    }
+}
@@ -0,0 +1,231 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.sources;
+
+import io.heraldprox.analysis.anomalies.EventGroupSummary;
+import io.heraldprox.analysis.anomalies.EventList;
+import io.heraldprox.analysis.anomalies.EventType;
+import io.heraldprox.analysis.anomalies.SymbolTable;
+import io.heraldprox.analysis.anomalies.columns.IntColumn;
+import io.heraldprox.analysis.anomalies.columns.LongColumn;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Binary copy of a ContactLogSource's parsed columns, kept next to its contacts.csv file so
+ * that later runs over the same data need not parse it again.
+ *
+ * The cache records the size and modification time of the csv file it was made from, and
+ * is ignored if either has changed, or if it was written by a different version of this class.
+ * Values are stored as codes into the cache's own string dictionary, as SymbolTable codes
+ * differ from run to run. Per type indexes are rebuilt as the events are loaded.
+ *
+ * Layout (big endian): magic, version, csv size, csv modified time, line count, end offset,
+ * event type bitmask, dictionary, then the per line columns (offset, sensor, id, data) and
+ * the per event columns (time, type, line).
+ */
+class ContactLogCache {
+    protected static final int MAGIC = 0x48454331; // HEC1
+    protected static final int VERSION = 1;
+
+    protected static final EventType[] TYPES = EventType.values();
+
+    /**
+     * @return The cache file for a contacts.csv file
+     */
+    static File cacheFileFor(File csv) {
+        return new File(csv.getParentFile(), csv.getName() + ".cache");
+    }
+
+    /**
+     * Loads a source's columns from its cache file, if it has a current one.
+     *
+     * @return true if the source is now loaded, false if it must parse its csv file instead
+     */
+    static boolean read(ContactLogSource source) {
+        File cache = cacheFileFor(source.file);
+        if (!cache.isFile()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(cache.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return false; // too large to map as one buffer, so parse instead
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (MAGIC != in.getInt() || VERSION != in.getInt()) {
+                return false;
+            }
+            if (source.file.length() != in.getLong() || source.file.lastModified() != in.getLong()) {
+                return false;
+            }
+            long lineCount = in.getLong();
+            long endOffset = in.getLong();
+            int typeMask = in.getInt();
+
+            // Local dictionary to this run's codes
+            SymbolTable symbols = source.symbols;
+            int[] codes = new int[readCount(in, 4)];
+            for (int i = 0;i < codes.length;++i) {
+                byte[] utf8 = new byte[readCount(in, 1)];
+                in.get(utf8);
+                codes[i] = symbols.intern(new String(utf8, StandardCharsets.UTF_8));
+            }
+
+            int lines = readCount(in, 8 + 3 * 4);
+            LongColumn lineOffsets = new LongColumn();
+            for (int i = 0;i < lines;++i) {
+                lineOffsets.add(in.getLong());
+            }
+            IntColumn sensorCodes = readCodes(in, lines, codes);
+            IntColumn idCodes = readCodes(in, lines, codes);
+            IntColumn dataCodes = readCodes(in, lines, codes);
+
+            int count = readCount(in, 8 + 1 + 8);
+            long[] occurred = new long[count];
+            in.asLongBuffer().get(occurred);
+            in.position(in.position() + count * 8);
+            byte[] types = new byte[count];
+            in.get(types);
+            EventList events = new EventList();
+            for (int i = 0;i < count;++i) {
+                long line = in.getLong();
+                events.add(source, occurred[i], TYPES[types[i]], line, line);
+            }
+
+            SortedSet<EventType> summaryTypes = new TreeSet<EventType>();
+            for (EventType type : TYPES) {
+                if (0 != (typeMask & (1 << type.ordinal()))) {
+                    summaryTypes.add(type);
+                }
+            }
+
+            source.summary = new EventGroupSummary(summaryTypes, lineCount);
+            source.endOffset = endOffset;
+            source.lineOffsets = lineOffsets;
+            source.sensorCodes = sensorCodes;
+            source.idCodes = idCodes;
+            source.dataCodes = dataCodes;
+            source.events = events;
+            return true;
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException e) {
+            // Unreadable, truncated or corrupt, so parse instead (and overwrite it)
+            return false;
+        }
+    }
+
+    /**
+     * Reads the number of values that follow, checking that the cache is long enough to hold
+     * them, so that a corrupt count fails before anything is allocated for it.
+     *
+     * @param bytesEach The fewest bytes each value takes
+     * @throws BufferUnderflowException If the cache is too short for the count
+     */
+    protected static int readCount(MappedByteBuffer in, int bytesEach) {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / bytesEach) {
+            throw new BufferUnderflowException();
+        }
+        return count;
+    }
+
+    protected static IntColumn readCodes(MappedByteBuffer in, int lines, int[] codes) {
+        IntColumn column = new IntColumn();
+        for (int i = 0;i < lines;++i) {
+            column.add(codes[in.getInt()]);
+        }
+        return column;
+    }
+
+    /**
+     * Writes a parsed source's columns to its cache file. Written to a temporary file first,
+     * so that a reader never sees a partial cache.
+     */
+    static void write(ContactLogSource source) throws IOException {
+        File cache = cacheFileFor(source.file);
+        File temporary = new File(cache.getParentFile(), cache.getName() + ".tmp");
+        SymbolTable symbols = source.symbols;
+
+        // Only the values this file uses, in order of first use
+        int[] localCodes = new int[symbols.size()];
+        Arrays.fill(localCodes, -1);
+        IntColumn dictionary = new IntColumn();
+        int lines = source.sensorCodes.size();
+        for (IntColumn column : new IntColumn[] {source.sensorCodes, source.idCodes, source.dataCodes}) {
+            for (int i = 0;i < lines;++i) {
+                int code = column.get(i);
+                if (-1 == localCodes[code]) {
+                    localCodes[code] = dictionary.size();
+                    dictionary.add(code);
+                }
+            }
+        }
+
+        int typeMask = 0;
+        for (EventType type : source.summary.types) {
+            typeMask |= 1 << type.ordinal();
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.file.length());
+            out.writeLong(source.file.lastModified());
+            out.writeLong(source.summary.eventCount);
+            out.writeLong(source.endOffset);
+            out.writeInt(typeMask);
+
+            out.writeInt(dictionary.size());
+            for (int i = 0;i < dictionary.size();++i) {
+                byte[] utf8 = symbols.symbol(dictionary.get(i)).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(utf8.length);
+                out.write(utf8);
+            }
+
+            out.writeInt(lines);
+            for (int i = 0;i < lines;++i) {
+                out.writeLong(source.lineOffsets.get(i));
+            }
+            for (IntColumn column : new IntColumn[] {source.sensorCodes, source.idCodes, source.dataCodes}) {
+                for (int i = 0;i < lines;++i) {
+                    out.writeInt(localCodes[column.get(i)]);
+                }
+            }
+
+            EventList events = source.events;
+            int count = events.size();
+            out.writeInt(count);
+            for (int i = 0;i < count;++i) {
+                out.writeLong(events.occurredAt(i));
+            }
+            for (int i = 0;i < count;++i) {
+                out.writeByte(events.typeAt(i).ordinal());
+            }
+            for (int i = 0;i < count;++i) {
+                out.writeLong(events.startLineAt(i));
+            }
+        }
+
+        try {
+            Files.move(temporary.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(temporary.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
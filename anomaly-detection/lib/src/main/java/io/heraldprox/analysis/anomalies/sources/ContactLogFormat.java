@@ -0,0 +1,198 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.sources;
+
+import io.heraldprox.analysis.anomalies.EventType;
+import io.heraldprox.analysis.anomalies.SymbolTable;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Hashtable;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The column layout of a contacts.csv file, as read from its header line, and the rules
+ * for turning one of its rows into an event.
+ * 
+ * Shared by every source that reads contacts.csv files so that they agree on what each
+ * line means.
+ */
+class ContactLogFormat {
+    // Only used for timestamps the TimestampParser does not recognise
+    // SimpleDateFormat is not thread safe, and sources may be read in parallel
+    private final static ThreadLocal<SimpleDateFormat> dateFormatter = ThreadLocal.withInitial(() -> {
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.UK);
+        formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return formatter;
+    });
+
+    // Minimum columns for a line to hold an event
+    static final int MINIMUM_COLUMNS = 9;
+
+    final TimestampParser timestamps = new TimestampParser();
+
+    int dateColumn = 0;
+    int sensorColumn = 0;
+    int idColumn = 0;
+    int detectColumn = 0;
+    int readColumn = 0;
+    int measureColumn = 0;
+    int shareColumn = 0;
+    int visitColumn = 0;
+    int isHeraldColumn = 0;
+    int deletedColumn = 0;
+    int dataColumn = 0;
+
+    /**
+     * @param header The first line of the file
+     * @return The format, or null if the header is missing any required column
+     */
+    static ContactLogFormat fromHeader(String header) {
+        if (null == header) {
+            return null;
+        }
+        String[] headerElements = header.split("[,]",-1);
+        Hashtable<ContactLogColumn,Integer> columns = new Hashtable<ContactLogColumn,Integer>();
+        for (int i = 0;i < headerElements.length;++i) {
+            String h = headerElements[i];
+            if ("time".equals(h)) {
+                columns.put(ContactLogColumn.DateTime,i);
+            } else if ("sensor".equals(h)) {
+                columns.put(ContactLogColumn.Sensor,i);
+            } else if ("id".equals(h)) {
+                columns.put(ContactLogColumn.Id,i);
+            } else if ("detect".equals(h)) {
+                columns.put(ContactLogColumn.Detect,i);
+            } else if ("read".equals(h)) {
+                columns.put(ContactLogColumn.Read,i);
+            } else if ("measure".equals(h)) {
+                columns.put(ContactLogColumn.Measure,i);
+            } else if ("share".equals(h)) {
+                columns.put(ContactLogColumn.Share,i);
+            } else if ("visit".equals(h)) {
+                columns.put(ContactLogColumn.Visit,i);
+            } else if ("detectHerald".equals(h)) {
+                columns.put(ContactLogColumn.DetectHerald,i);
+            } else if ("delete".equals(h)) {
+                columns.put(ContactLogColumn.Delete,i);
+            } else if ("data".equals(h)) {
+                columns.put(ContactLogColumn.Data,i);
+            }
+        }
+
+        Integer dateColumnInt = columns.get(ContactLogColumn.DateTime);
+        Integer sensorColumnInt = columns.get(ContactLogColumn.Sensor);
+        Integer idColumnInt = columns.get(ContactLogColumn.Id);
+        Integer detectColumnInt = columns.get(ContactLogColumn.Detect);
+        Integer readColumnInt = columns.get(ContactLogColumn.Read);
+        Integer measureColumnInt = columns.get(ContactLogColumn.Measure);
+        Integer shareColumnInt = columns.get(ContactLogColumn.Share);
+        Integer visitColumnInt = columns.get(ContactLogColumn.Visit);
+        Integer isHeraldColumnInt = columns.get(ContactLogColumn.DetectHerald);
+        Integer deletedColumnInt = columns.get(ContactLogColumn.Delete);
+        Integer dataColumnInt = columns.get(ContactLogColumn.Data);
+
+        if (
+            null == dateColumnInt ||
+            null == sensorColumnInt ||
+            null == idColumnInt ||
+            null == detectColumnInt ||
+            null == readColumnInt ||
+            null == measureColumnInt ||
+            null == shareColumnInt ||
+            null == visitColumnInt ||
+            null == isHeraldColumnInt ||
+            null == deletedColumnInt ||
+            null == dataColumnInt
+        ) {
+            return null;
+        }
+
+        ContactLogFormat format = new ContactLogFormat();
+        format.dateColumn = dateColumnInt.intValue();
+        format.sensorColumn = sensorColumnInt.intValue();
+        format.idColumn = idColumnInt.intValue();
+        format.detectColumn = detectColumnInt.intValue();
+        format.readColumn = readColumnInt.intValue();
+        format.measureColumn = measureColumnInt.intValue();
+        format.shareColumn = shareColumnInt.intValue();
+        format.visitColumn = visitColumnInt.intValue();
+        format.isHeraldColumn = isHeraldColumnInt.intValue();
+        format.deletedColumn = deletedColumnInt.intValue();
+        format.dataColumn = dataColumnInt.intValue();
+        return format;
+    }
+
+    /**
+     * @param fields The tokenized line
+     * @return The event this line describes, or null if none
+     */
+    EventType eventType(CsvTokenizer fields) {
+        if (fields.fieldCount() < MINIMUM_COLUMNS) {
+            return null;
+        }
+        if (fields.is(detectColumn, '1')) {
+            return EventType.ContactDetected;
+        } else if (fields.is(readColumn, '2')) {
+            return EventType.ContactRead;
+        } else if (fields.is(measureColumn, '3')) {
+            return EventType.ContactMeasure;
+        } else if (fields.is(shareColumn, '4')) {
+            return EventType.ContactShare;
+        } else if (fields.is(visitColumn, '5')) {
+            return EventType.ContactVisit;
+        } else if (fields.is(isHeraldColumn, '6')) {
+            return EventType.ContactIsHerald;
+        } else if (fields.is(deletedColumn, '7')) {
+            return EventType.ContactDeleted;
+        }
+        return null;
+    }
+
+    /**
+     * @param fields The tokenized line
+     * @return The epoch time in milliseconds of the line
+     */
+    long time(CsvTokenizer fields) {
+        long time = timestamps.parse(fields.bytes(), fields.start(dateColumn), fields.length(dateColumn));
+        if (TimestampParser.INVALID != time) {
+            return time;
+        }
+        try {
+            return dateFormatter.get().parse(fields.string(dateColumn)).getTime();
+        } catch (ParseException pe) {
+            pe.printStackTrace(System.err);
+        }
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Encodes a field, reusing the previous code without decoding the field if its value has not changed.
+     *
+     * @param previousCode The code of this column on the previous line, or -1
+     * @return The code of the field in symbols
+     */
+    static int intern(SymbolTable symbols, CsvTokenizer fields, int column, int previousCode) {
+        if (previousCode >= 0 && fields.matches(column, symbols.symbol(previousCode))) {
+            return previousCode;
+        }
+        return symbols.intern(fields.string(column));
+    }
+
+    enum ContactLogColumn {
+        DateTime,
+        Sensor,
+        Id,
+        Detect,
+        Read,
+        Measure,
+        Share,
+        Visit,
+        DetectHerald,
+        Delete,
+        Data,
+    }
+}
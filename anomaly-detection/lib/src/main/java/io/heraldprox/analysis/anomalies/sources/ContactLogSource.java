@@ -1,4 +1,4 @@
-//  Copyright 2022 Herald Project Contributors
+//  Copyright 2022-2023 Herald Project Contributors
 //  SPDX-License-Identifier: Apache-2.0
 //
 
@@ -9,27 +9,28 @@ import io.heraldprox.analysis.anomalies.EventType;
 import io.heraldprox.analysis.anomalies.EventGroupSummary;
 import io.heraldprox.analysis.anomalies.EventSource;
 import io.heraldprox.analysis.anomalies.EventList;
-import io.heraldprox.analysis.anomalies.EventPointer;
-
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Locale;
-import java.util.TimeZone;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import io.heraldprox.analysis.anomalies.Metrics;
+import io.heraldprox.analysis.anomalies.SymbolTable;
+import io.heraldprox.analysis.anomalies.columns.IntColumn;
+import io.heraldprox.analysis.anomalies.columns.LongColumn;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
-import java.util.Hashtable;
-import java.util.Date;
-
-public class ContactLogSource implements EventSource {
-    private final static SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.UK);
-    static {
-        dateFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-    }
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+public class ContactLogSource implements EventSource, Closeable {
     protected File file;
     protected boolean initialised = false;
 
@@ -38,240 +39,380 @@ public class ContactLogSource implements EventSource {
     protected EventList events = new EventList();
     protected int lastIndex = 0;
 
-    protected BufferedReader lineReader = null;
-    protected int lastLineRead = 0;
-    protected String lastLine = "";
-
-    protected int dateColumn = 0;
-    protected int sensorColumn = 0;
-    protected int idColumn = 0;
-    protected int detectColumn = 0;
-    protected int readColumn = 0;
-    protected int measureColumn = 0;
-    protected int shareColumn = 0;
-    protected int visitColumn = 0;
-    protected int isHeraldColumn = 0;
-    protected int deletedColumn = 0;
-    protected int dataColumn = 0;
+    // Byte offset of the start of each data line (index 0 is line/event 1), for random access by text()
+    protected LongColumn lineOffsets = new LongColumn();
+    protected long endOffset = 0; // just past the last data line read
+    protected FileChannel channel = null;
+    protected IOException failure = null;
+
+    // Sensor, id (address) and data columns per data line (index 0 is line/event 1), dictionary encoded
+    protected SymbolTable symbols;
+    protected IntColumn sensorCodes = new IntColumn();
+    protected IntColumn idCodes = new IntColumn();
+    protected IntColumn dataCodes = new IntColumn();
+
+    // Parsing in parallel (See setParallelism)
+    public static final long MIN_SEGMENT_BYTES = 1024 * 1024;
+    protected int parallelism = 1;
+    protected long minSegmentBytes = MIN_SEGMENT_BYTES;
+
+    // Keep a binary copy of the parsed file alongside it (See ContactLogCache)
+    protected boolean caching = false;
+
+    // The file is still being written to (See setFollowing and readAppended)
+    protected boolean following = false;
+    protected ContactLogFormat format = null;
+
+    protected Metrics metrics = Metrics.NOOP;
 
     public ContactLogSource(File contactFile) {
+        this(contactFile, new SymbolTable());
+    }
+
+    /**
+     * @param contactFile The contacts.csv file to read
+     * @param symbols Dictionary to encode values with, normally shared by every device in a test
+     */
+    public ContactLogSource(File contactFile, SymbolTable symbols) {
         file = contactFile;
+        this.symbols = symbols;
+    }
+
+    /**
+     * Parses large files as several byte ranges on separate threads, then joins them in order.
+     *
+     * @param parallelism The most threads to parse with. 1 (the default) parses on the calling thread only
+     */
+    public void setParallelism(int parallelism) {
+        setParallelism(parallelism, MIN_SEGMENT_BYTES);
+    }
+
+    /**
+     * @param parallelism The most threads to parse with
+     * @param minSegmentBytes The smallest byte range worth parsing on its own thread
+     */
+    public void setParallelism(int parallelism, long minSegmentBytes) {
+        this.parallelism = Math.max(1, parallelism);
+        this.minSegmentBytes = Math.max(1, minSegmentBytes);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Loads from a binary cache file next to the csv file when it is current, and writes
+     * one after parsing when it is not. Off by default, as it writes into the data folder.
+     */
+    public void setCaching(boolean doCache) {
+        caching = doCache;
+    }
+
+    public boolean isCaching() {
+        return caching;
+    }
+
+    /**
+     * For files still being written to. A final line without a newline is left unread, as it
+     * may be incomplete, and the cache is not used. Call readAppended() to read newer lines.
+     * Must be set before the file is first read.
+     */
+    public void setFollowing(boolean doFollow) {
+        following = doFollow;
+    }
+
+    public boolean isFollowing() {
+        return following;
+    }
+
+    /**
+     * Records parsing, under the name of the folder holding the file (See Metrics).
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    protected String device() {
+        File folder = file.getAbsoluteFile().getParentFile();
+        return null == folder ? "" : folder.getName();
     }
 
     protected void initialise() {
         if (initialised) {
             return;
         }
+        if (caching && !following) {
+            Metrics.Stage stage = metrics.stage("contacts.cache", device());
+            Metrics.Timer timer = stage.start();
+            boolean cached = ContactLogCache.read(this);
+            timer.stop();
+            if (cached) {
+                stage.addRows(summary.eventCount);
+                stage.addEvents(events.size());
+                initialised = true;
+                return;
+            }
+        }
+        Metrics.Stage stage = metrics.stage("contacts.parse", device());
+        Metrics.Timer timer = stage.start();
         try {
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-            // Read header line
+            long lineCount = 0;
+            SortedSet<EventType> types = new TreeSet<EventType>();
+
+            if (readHeader()) {
+                List<Segment> segments = parseSegments(format, segmentBounds(endOffset, file.length()));
+                if (1 == segments.size()) {
+                    // Nothing to join, so keep the parsed columns as they are
+                    Segment only = segments.get(0);
+                    events = only.events;
+                    lineOffsets = only.lineOffsets;
+                    sensorCodes = only.sensorCodes;
+                    idCodes = only.idCodes;
+                    dataCodes = only.dataCodes;
+                }
+                for (Segment segment : segments) {
+                    if (segments.size() > 1) {
+                        // Event numbers within a segment start at 1, so move them after the segments before
+                        events.addAll(segment.events, lineCount);
+                        for (int i = 0;i < segment.lineOffsets.size();++i) {
+                            lineOffsets.add(segment.lineOffsets.get(i));
+                            sensorCodes.add(segment.sensorCodes.get(i));
+                            idCodes.add(segment.idCodes.get(i));
+                            dataCodes.add(segment.dataCodes.get(i));
+                        }
+                    }
+                    lineCount += segment.lineCount;
+                    types.addAll(segment.types);
+                    if (segment.lineCount > 0) {
+                        endOffset = segment.endOffset;
+                    }
+                }
+            } // format check
+            summary = new EventGroupSummary(types, lineCount);
+            timer.stop();
+            stage.addRows(lineCount);
+            stage.addBytes(endOffset);
+            stage.addEvents(events.size());
+            if (caching && !following && null != format) {
+                writeCache();
+            }
+        } catch (IOException ioe) {
+            // Reported by whoever loads the folder (See TestFolder.load)
+            failure = ioe;
+        }
+
+        // If it fails, it won't suddenly succeed later, so mark as initialised
+        initialised = true;
+    }
+
+    /**
+     * Reads the header line, if it has not been read yet.
+     * 
+     * @return true if the file has a header line with every column needed
+     */
+    protected boolean readHeader() throws IOException {
+        if (null != format) {
+            return true;
+        }
+        try (OffsetLineReader reader = new OffsetLineReader(new FileInputStream(file))) {
             String header = reader.readLine();
-            String[] headerElements = header.split("[,]",-1);
-            Hashtable<ContactLogColumn,Integer> columns = new Hashtable<ContactLogColumn,Integer>();
-            for (int i = 0;i < headerElements.length;++i) {
-                String h = headerElements[i];
-                if ("time".equals(h)) {
-                    columns.put(ContactLogColumn.DateTime,i);
-                } else if ("sensor".equals(h)) {
-                    columns.put(ContactLogColumn.Sensor,i);
-                } else if ("id".equals(h)) {
-                    columns.put(ContactLogColumn.Id,i);
-                } else if ("detect".equals(h)) {
-                    columns.put(ContactLogColumn.Detect,i);
-                } else if ("read".equals(h)) {
-                    columns.put(ContactLogColumn.Read,i);
-                } else if ("measure".equals(h)) {
-                    columns.put(ContactLogColumn.Measure,i);
-                } else if ("share".equals(h)) {
-                    columns.put(ContactLogColumn.Share,i);
-                } else if ("visit".equals(h)) {
-                    columns.put(ContactLogColumn.Visit,i);
-                } else if ("detectHerald".equals(h)) {
-                    columns.put(ContactLogColumn.DetectHerald,i);
-                } else if ("delete".equals(h)) {
-                    columns.put(ContactLogColumn.Delete,i);
-                } else if ("data".equals(h)) {
-                    columns.put(ContactLogColumn.Data,i);
+            if (null == header || (following && !reader.lineTerminated())) {
+                return false;
+            }
+            format = ContactLogFormat.fromHeader(header);
+            // Data lines start just after the header (already past it if loaded from the cache)
+            endOffset = Math.max(endOffset, reader.offset());
+        }
+        return null != format;
+    }
+
+    /**
+     * Parses the lines appended to the file since it was last read, reading only the new
+     * bytes. A final line without a newline is left for a later call, as it may be incomplete.
+     * Lines are expected to be appended only; a file that shrinks is not re-read.
+     * 
+     * @return The number of events added to events()
+     */
+    @Override
+    public int readAppended() {
+        initialise();
+        int before = events.size();
+        try {
+            if (!readHeader() || file.length() <= endOffset) {
+                return 0;
+            }
+            Metrics.Stage stage = metrics.stage("contacts.append", device());
+            Metrics.Timer timer = stage.start();
+            Segment appended = new Segment(endOffset, Long.MAX_VALUE);
+            appended.completeLinesOnly = true;
+            appended.parse(format);
+            timer.stop();
+            if (0 == appended.lineCount) {
+                return 0;
+            }
+            stage.addRows(appended.lineCount);
+            stage.addBytes(appended.endOffset - endOffset);
+            stage.addEvents(appended.events.size());
+            long lineCount = summary.eventCount;
+            events.addAll(appended.events, lineCount);
+            for (int i = 0;i < appended.lineOffsets.size();++i) {
+                lineOffsets.add(appended.lineOffsets.get(i));
+                sensorCodes.add(appended.sensorCodes.get(i));
+                idCodes.add(appended.idCodes.get(i));
+                dataCodes.add(appended.dataCodes.get(i));
+            }
+            SortedSet<EventType> types = new TreeSet<EventType>(summary.types);
+            types.addAll(appended.types);
+            endOffset = appended.endOffset;
+            summary = new EventGroupSummary(types, lineCount + appended.lineCount);
+        } catch (IOException ioe) {
+            // Reported by whoever polls the folder, and tried again next time
+            failure = ioe;
+        }
+        return events.size() - before;
+    }
+
+    protected void writeCache() {
+        try {
+            ContactLogCache.write(this);
+        } catch (IOException ioe) {
+            // Not fatal, the next run will just parse the file again
+            System.err.println("Could not write cache for '" + file + "': " + ioe);
+        }
+    }
+
+    /**
+     * Splits the data lines into byte ranges that each start at the beginning of a line.
+     *
+     * @return Range boundaries. Range i is from bounds[i] to bounds[i + 1]
+     */
+    protected long[] segmentBounds(long dataStart, long fileLength) throws IOException {
+        long segmentCount = Math.min(parallelism, Math.max(1, (fileLength - dataStart) / minSegmentBytes));
+        if (segmentCount <= 1) {
+            // Read to the end of the file, however long it has become
+            return new long[] {dataStart, Long.MAX_VALUE};
+        }
+        long[] bounds = new long[(int)segmentCount + 1];
+        bounds[0] = dataStart;
+        bounds[bounds.length - 1] = Long.MAX_VALUE;
+        long segmentLength = (fileLength - dataStart) / segmentCount;
+        // Only needed whilst splitting, so not the channel held for line()
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int i = 1;i < segmentCount;++i) {
+                bounds[i] = Math.max(bounds[i - 1], nextLineStart(fc, dataStart + i * segmentLength));
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * @param fc The file to read
+     * @return The offset of the first line that starts at or after offset
+     */
+    protected long nextLineStart(FileChannel fc, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        // Start one byte early, in case offset is already the start of a line
+        long position = offset - 1;
+        while (true) {
+            buffer.clear();
+            int read = fc.read(buffer, position);
+            if (read <= 0) {
+                return fc.size();
+            }
+            for (int i = 0;i < read;++i) {
+                if ('\n' == buffer.get(i)) {
+                    return position + i + 1;
                 }
             }
+            position += read;
+        }
+    }
 
-            long lineCount = 0;
-            SortedSet<EventType> types = new TreeSet<EventType>();
+    protected List<Segment> parseSegments(final ContactLogFormat format, final long[] bounds) throws IOException {
+        if (2 == bounds.length) {
+            Segment only = new Segment(bounds[0], bounds[1]);
+            only.parse(format);
+            return Collections.singletonList(only);
+        }
+        // Parallel streams keep their order, and run in the caller's ForkJoinPool if it has one (E.g. TestFolder.load)
+        try {
+            return IntStream.range(0, bounds.length - 1).parallel().mapToObj(i -> {
+                Segment segment = new Segment(bounds[i], bounds[i + 1]);
+                try {
+                    segment.parse(format);
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+                return segment;
+            }).collect(Collectors.toList());
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+    }
 
-            Integer dateColumnInt = columns.get(ContactLogColumn.DateTime);
-            Integer sensorColumnInt = columns.get(ContactLogColumn.Sensor);
-            Integer idColumnInt = columns.get(ContactLogColumn.Id);
-            Integer detectColumnInt = columns.get(ContactLogColumn.Detect);
-            Integer readColumnInt = columns.get(ContactLogColumn.Read);
-            Integer measureColumnInt = columns.get(ContactLogColumn.Measure);
-            Integer shareColumnInt = columns.get(ContactLogColumn.Share);
-            Integer visitColumnInt = columns.get(ContactLogColumn.Visit);
-            Integer isHeraldColumnInt = columns.get(ContactLogColumn.DetectHerald);
-            Integer deletedColumnInt = columns.get(ContactLogColumn.Delete);
-            Integer dataColumnInt = columns.get(ContactLogColumn.Data);
-
-            if (
-                null != dateColumnInt &&
-                null != sensorColumnInt &&
-                null != idColumnInt &&
-                null != detectColumnInt &&
-                null != readColumnInt &&
-                null != measureColumnInt &&
-                null != shareColumnInt &&
-                null != visitColumnInt &&
-                null != isHeraldColumnInt &&
-                null != deletedColumnInt &&
-                null != dataColumnInt
-            ) {
-                dateColumn = dateColumnInt.intValue();
-                sensorColumn = sensorColumnInt.intValue();
-                idColumn = idColumnInt.intValue();
-                detectColumn = detectColumnInt.intValue();
-                readColumn = readColumnInt.intValue();
-                measureColumn = measureColumnInt.intValue();
-                shareColumn = shareColumnInt.intValue();
-                visitColumn = visitColumnInt.intValue();
-                isHeraldColumn = isHeraldColumnInt.intValue();
-                deletedColumn = deletedColumnInt.intValue();
-                dataColumn = dataColumnInt.intValue();
-
-                // Keep these commented out so we're flexible in future
-                // if (1 != sensorColumn) {
-                //     throw new Error("Sensor Column index should not be zero");
-                // }
-                // if (2 != idColumn) {
-                //     throw new Error("ID Column index should not be zero");
-                // }
-                // if (4 != readColumn) {
-                //     throw new Error("Read Column index should not be zero");
-                // }
-                // if (5 != measureColumn) {
-                //     throw new Error("Measure Column index should not be zero");
-                // }
-                // if (8 != isHeraldColumn) {
-                //     throw new Error("Herald Column index should not be zero");
-                // }
-                // if (10 != dataColumn) {
-                //     throw new Error("Data Column index should not be zero");
-                // }
-                
-                // Read each content line
-                // final String blank = "";
-                final String one = "1";
-                final String two = "2";
-                final String three = "3";
-                final String four = "4";
-                final String five = "5";
-                final String six = "6";
-                final String seven = "7";
-                String line;
-                while (null != (line = reader.readLine())) {
-                    ++lineCount;
-                    String[] elements = line.split(",",-1); // include empty values
-                    if (elements.length < 9) {
-                        continue;
-                    }
+    /**
+     * The data lines starting within one byte range of the file. Line (event) numbers start
+     * at 1 for the first line of the range.
+     */
+    protected class Segment {
+        final long start;
+        final long end;
+        // Stop before a final line without a newline (See setFollowing)
+        boolean completeLinesOnly = following;
+        long lineCount = 0;
+        long endOffset = 0;
+        final SortedSet<EventType> types = new TreeSet<EventType>();
+        final EventList events = new EventList();
+        final LongColumn lineOffsets = new LongColumn();
+        final IntColumn sensorCodes = new IntColumn();
+        final IntColumn idCodes = new IntColumn();
+        final IntColumn dataCodes = new IntColumn();
 
-                    // Extract common event fields
-                    Date date = new Date();
-                    try {
-                        date = dateFormatter.parse(elements[dateColumn]);
-                    } catch (ParseException pe) {
-                        pe.printStackTrace(System.err);
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        void parse(ContactLogFormat format) throws IOException {
+            try (FileInputStream in = new FileInputStream(file)) {
+                in.getChannel().position(start);
+                OffsetLineReader reader = new OffsetLineReader(in, start);
+                // Read each content line, tokenized in place
+                CsvTokenizer fields = new CsvTokenizer();
+                int sensorCode = -1;
+                int idCode = -1;
+                int dataCode = -1;
+                while (reader.nextLine() && reader.lineOffset() < end) {
+                    if (completeLinesOnly && !reader.lineTerminated()) {
+                        break;
                     }
+                    ++lineCount;
+                    lineOffsets.add(reader.lineOffset());
+                    endOffset = reader.offset();
+                    fields.tokenize(reader.lineBytes(), reader.lineStart(), reader.lineEnd());
+                    // Keep the payload now, so nothing needs to re-read or re-split the line later
+                    sensorCode = ContactLogFormat.intern(symbols, fields, format.sensorColumn, sensorCode);
+                    idCode = ContactLogFormat.intern(symbols, fields, format.idColumn, idCode);
+                    dataCode = ContactLogFormat.intern(symbols, fields, format.dataColumn, dataCode);
+                    sensorCodes.add(sensorCode);
+                    idCodes.add(idCode);
+                    dataCodes.add(dataCode);
 
                     // extract event
-                    // if (null != elements[detectColumn] && !blank.equals(elements[detectColumn])) {
-                    if (one.equals(elements[detectColumn])) {
-                        types.add(EventType.ContactDetected);
-                        events.add(new Event(
-                            date,
-                            EventType.ContactDetected,
-                            new EventPointer(
-                                this,
-                                lineCount, // not the physical line in a csv file, but the event count
-                                lineCount
-                            )
-                        ));
-                    // } else if (null != elements[readColumn] && !blank.equals(elements[readColumn])) {
-                    } else if (two.equals(elements[readColumn])) {
-                        types.add(EventType.ContactRead);
-                        events.add(new Event(
-                            date,
-                            EventType.ContactRead,
-                            new EventPointer(
-                                this,
-                                lineCount, // not the physical line in a csv file, but the event count
-                                lineCount
-                            )
-                        ));
-                    // } else if (null != elements[measureColumn] && !blank.equals(elements[measureColumn])) {
-                    } else if (three.equals(elements[measureColumn])) {
-                        types.add(EventType.ContactMeasure);
-                        events.add(new Event(
-                            date,
-                            EventType.ContactMeasure,
-                            new EventPointer(
-                                this,
-                                lineCount, // not the physical line in a csv file, but the event count
-                                lineCount
-                            )
-                        ));
-                    // } else if (null != elements[shareColumn] && !blank.equals(elements[shareColumn])) {
-                    } else if (four.equals(elements[shareColumn])) {
-                        types.add(EventType.ContactShare);
-                        events.add(new Event(
-                            date,
-                            EventType.ContactShare,
-                            new EventPointer(
-                                this,
-                                lineCount, // not the physical line in a csv file, but the event count
-                                lineCount
-                            )
-                        ));
-                    // } else if (null != elements[visitColumn] && !blank.equals(elements[visitColumn])) {
-                    } else if (five.equals(elements[visitColumn])) {
-                        types.add(EventType.ContactVisit);
-                        events.add(new Event(
-                            date,
-                            EventType.ContactVisit,
-                            new EventPointer(
-                                this,
-                                lineCount, // not the physical line in a csv file, but the event count
-                                lineCount
-                            )
-                        ));
-                    // } else if (null != elements[isHeraldColumn] && !blank.equals(elements[isHeraldColumn])) {
-                    } else if (six.equals(elements[isHeraldColumn])) {
-                        types.add(EventType.ContactIsHerald);
-                        events.add(new Event(
-                            date,
-                            EventType.ContactIsHerald,
-                            new EventPointer(
-                                this,
-                                lineCount, // not the physical line in a csv file, but the event count
-                                lineCount
-                            )
-                        ));
-                    // } else if (null != elements[deletedColumn] && !blank.equals(elements[deletedColumn])) {
-                    } else if (seven.equals(elements[deletedColumn])) {
-                        types.add(EventType.ContactDeleted);
-                        events.add(new Event(
-                            date,
-                            EventType.ContactDeleted,
-                            new EventPointer(
-                                this,
-                                lineCount, // not the physical line in a csv file, but the event count
-                                lineCount
-                            )
-                        ));
+                    EventType type = format.eventType(fields);
+                    if (null != type) {
+                        types.add(type);
+                        // Written straight into the columns - no per event objects are kept
+                        events.add(
+                            ContactLogSource.this,
+                            format.time(fields),
+                            type,
+                            lineCount, // not the physical line in a csv file, but the event count
+                            lineCount
+                        );
                     }
                 }
-            } // format check
-            reader.close();
-            summary = new EventGroupSummary(types, lineCount);
-        } catch (IOException ioe) {
-            ioe.printStackTrace(System.err);
+            }
         }
     }
 
@@ -296,19 +437,9 @@ public class ContactLogSource implements EventSource {
     }
 
     protected Event findNextByType(final EventType type) {
-        Event found = events.atIndex(lastIndex);
-        boolean matches = false;
-        while (!matches && null != found && lastIndex < events.size()) {
-            matches = (found.type() == type);
-            if (!matches) {
-                lastIndex++;
-                found = events.atIndex(lastIndex);
-            }
-        }
-        if (lastIndex > events.size()) {
-            lastIndex = events.size();
-        }
-        return found;
+        // Jump straight to the next match using the per type index
+        lastIndex = events.nextIndexOfType(type, lastIndex);
+        return events.atIndex(lastIndex);
     }
 
     @Override
@@ -334,61 +465,118 @@ public class ContactLogSource implements EventSource {
         return findNextByType(type);
     }
 
+    @Override
+    public Exception getFailure() {
+        return failure;
+    }
+
+    @Override
+    public EventList events() {
+        initialise();
+        return events;
+    }
+
+    protected boolean isDataLine(long lineNumber) {
+        return lineNumber >= 1 && lineNumber <= sensorCodes.size();
+    }
+
     @Override
     public String text(long lineNumber) {
+        // our indexes are EVENT numbers, so header is index 0, first data line is line/event 1
+        if (!isDataLine(lineNumber)) {
+            return "";
+        }
+        // Only return event data outside of the event description (I.e. only Source,Address,Data)
+        return sensor(lineNumber) + "," + address(lineNumber) + "," + data(lineNumber);
+    }
+
+    @Override
+    public String sensor(long lineNumber) {
+        return isDataLine(lineNumber) ? symbols.symbol(sensorCodes.get((int)(lineNumber - 1))) : "";
+    }
+
+    @Override
+    public String address(long lineNumber) {
+        return isDataLine(lineNumber) ? symbols.symbol(idCodes.get((int)(lineNumber - 1))) : "";
+    }
+
+    @Override
+    public String data(long lineNumber) {
+        return isDataLine(lineNumber) ? symbols.symbol(dataCodes.get((int)(lineNumber - 1))) : "";
+    }
+
+    @Override
+    public SymbolTable symbols() {
+        return symbols;
+    }
+
+    @Override
+    public int addressCode(long lineNumber) {
+        return isDataLine(lineNumber) ? idCodes.get((int)(lineNumber - 1)) : -1;
+    }
+
+    @Override
+    public int dataCode(long lineNumber) {
+        return isDataLine(lineNumber) ? dataCodes.get((int)(lineNumber - 1)) : -1;
+    }
+
+    @Override
+    public double rssi(long lineNumber) {
+        return isDataLine(lineNumber) ? symbols.rssi(dataCodes.get((int)(lineNumber - 1))) : Double.NaN;
+    }
+
+    /**
+     * Returns the raw csv line, read straight from the file using the offsets recorded whilst parsing.
+     * 
+     * @param lineNumber Data line number, where 1 is the first line after the header
+     * @return The full line, or blank if there is no such line
+     */
+    public String line(long lineNumber) {
+        if (lineNumber < 1 || lineNumber > lineOffsets.size()) {
+            return "";
+        }
         try {
-            final String blank = "";
-            if (null != lineReader) {
-                if (lineNumber > lastLineRead) {
-                    // close and reset
-                    lineReader.close();
-                    lineReader = null;
+            long start = lineOffsets.get((int)(lineNumber - 1));
+            long end = (lineNumber < lineOffsets.size()) ? lineOffsets.get((int)lineNumber) : endOffset;
+            ByteBuffer buffer = ByteBuffer.allocate((int)(end - start));
+            FileChannel fc = channel();
+            while (buffer.hasRemaining()) {
+                if (fc.read(buffer, start + buffer.position()) < 0) {
+                    break;
                 }
             }
-            if (null == lineReader) {
-                lineReader = new BufferedReader(new FileReader(file));
-                lastLineRead = 1;
-                lineReader.readLine(); // header line, index 0
-                lastLine = lineReader.readLine();
-            }
-            // our indexes are EVENT numbers, so header is index 0, first data line is line/event 1
-            // if (lastLineRead == lineNumber) {
-            //     return lastLine;
-            // }
-            while (lastLineRead < lineNumber && null != lastLine) {
-                lastLine = lineReader.readLine();
-                lastLineRead++;
-            }
-            // if (lastLineRead != lineNumber) {
-            //     // end of file before lineNumber reached
-            //     return "";
-            // }
-            // Finally we have the right line
-            // Now process it to only return event data outside of the event description (I.e. only Source,Address,Data)
-            if (null != lastLine && !blank.equals(lastLine)) {
-                String[] lastSplit = lastLine.split("[,]",-1); // Returns empty values with -1
-                if (lastSplit.length < 11) {
-                    throw new Error("Generated Source lastLine should have three elements: " + lastLine);
-                }
-                return lastSplit[sensorColumn] + "," + lastSplit[idColumn] + "," + lastSplit[dataColumn];
+            int length = buffer.position();
+            byte[] bytes = buffer.array();
+            while (length > 0 && ('\n' == bytes[length - 1] || '\r' == bytes[length - 1])) {
+                length--;
             }
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
         } catch (IOException ioe) {
             ioe.printStackTrace();
         }
         return "";
     }
-    
-    enum ContactLogColumn {
-        DateTime,
-        Sensor,
-        Id,
-        Detect,
-        Read,
-        Measure,
-        Share,
-        Visit,
-        DetectHerald,
-        Delete,
-        Data,
+
+    protected synchronized FileChannel channel() throws IOException {
+        if (null == channel) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        return channel;
+    }
+
+    /**
+     * Releases the file handle opened by line(). Events stay in memory, and
+     * reading a line again reopens it.
+     */
+    @Override
+    public synchronized void close() {
+        if (null != channel) {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                // Nothing more to read anyway
+            }
+            channel = null;
+        }
     }
 }
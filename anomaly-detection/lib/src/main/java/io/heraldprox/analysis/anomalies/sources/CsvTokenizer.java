@@ -0,0 +1,108 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.sources;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits one line of a Herald csv file into fields without creating any Strings.
+ *
+ * Fields are held as offsets into the line's bytes, so checks like detect == "1" are byte
+ * comparisons, and only the fields a caller asks for with string() are decoded. Herald log
+ * files do not quote values, so neither does this. A tokenizer is reused line after line,
+ * and so is not thread safe.
+ */
+class CsvTokenizer {
+    protected byte[] bytes = new byte[0];
+    protected int[] starts = new int[16];
+    protected int[] ends = new int[16];
+    protected int count = 0;
+
+    /**
+     * Splits bytes[start, end) on commas, including empty values (Like String.split(",", -1)).
+     *
+     * @return The number of fields
+     */
+    int tokenize(byte[] bytes, int start, int end) {
+        this.bytes = bytes;
+        count = 0;
+        int fieldStart = start;
+        for (int i = start;i < end;++i) {
+            if (',' == bytes[i]) {
+                addField(fieldStart, i);
+                fieldStart = i + 1;
+            }
+        }
+        addField(fieldStart, end);
+        return count;
+    }
+
+    protected void addField(int start, int end) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    int fieldCount() {
+        return count;
+    }
+
+    /**
+     * @return The bytes the fields were read from, for use with start() and length()
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    int start(int field) {
+        return field < count ? starts[field] : 0;
+    }
+
+    /**
+     * @return The length of the field in bytes, or 0 if there is no such field
+     */
+    int length(int field) {
+        return field < count ? ends[field] - starts[field] : 0;
+    }
+
+    /**
+     * @return true if the field is exactly the single (ASCII) character c
+     */
+    boolean is(int field, char c) {
+        return field < count && 1 == ends[field] - starts[field] && c == bytes[starts[field]];
+    }
+
+    /**
+     * @return true if the field holds the same characters as the (ASCII) value
+     */
+    boolean matches(int field, String value) {
+        int length = length(field);
+        if (length != value.length()) {
+            return false;
+        }
+        int start = starts[field];
+        for (int i = 0;i < length;++i) {
+            if (value.charAt(i) != bytes[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The field as a String, or blank if there is no such field
+     */
+    String string(int field) {
+        if (field >= count) {
+            return "";
+        }
+        return new String(bytes, starts[field], ends[field] - starts[field], StandardCharsets.UTF_8);
+    }
+}
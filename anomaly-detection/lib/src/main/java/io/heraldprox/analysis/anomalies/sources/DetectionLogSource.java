@@ -1,4 +1,4 @@
-//  Copyright 2022 Herald Project Contributors
+//  Copyright 2022-2023 Herald Project Contributors
 //  SPDX-License-Identifier: Apache-2.0
 //
 
@@ -9,16 +9,14 @@ import io.heraldprox.analysis.anomalies.EventType;
 import io.heraldprox.analysis.anomalies.EventGroupSummary;
 import io.heraldprox.analysis.anomalies.EventSource;
 import io.heraldprox.analysis.anomalies.EventList;
-import io.heraldprox.analysis.anomalies.EventPointer;
+import io.heraldprox.analysis.anomalies.SymbolTable;
 import io.heraldprox.analysis.anomalies.TestDevice;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.File;
 import java.util.SortedSet;
 import java.util.TreeSet;
-import java.util.Date;
 
 /**
  * Represents each individual phone's detection.csv file.
@@ -47,10 +45,25 @@ public class DetectionLogSource implements EventSource {
     protected TreeSet<String> broadcastIDsSeen = new TreeSet<String>();
 
     protected String[] elements = new String[]{};
+    protected int[] elementCodes = new int[]{};
+
+    protected SymbolTable symbols;
+
+    protected IOException failure = null;
 
     public DetectionLogSource(File contactFile, TestDevice toDescribe) {
+        this(contactFile, toDescribe, new SymbolTable());
+    }
+
+    /**
+     * @param contactFile The detection.csv file to read
+     * @param toDescribe The device to fill in from this file's details
+     * @param symbols Dictionary to encode broadcast IDs with, normally shared by every device in a test
+     */
+    public DetectionLogSource(File contactFile, TestDevice toDescribe, SymbolTable symbols) {
         file = contactFile;
         sourceDevice = toDescribe;
+        this.symbols = symbols;
 
         initialise();
     }
@@ -76,20 +89,26 @@ public class DetectionLogSource implements EventSource {
             return;
         }
         try {
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-            // Read header line
-            String data = reader.readLine();
-            reader.close();
-
+            OffsetLineReader reader = new OffsetLineReader(new FileInputStream(file));
             // There's only one line!
-            if (null != data) {
-                elements = data.split("[,]");
-                reader.close();
+            if (reader.nextLine()) {
+                CsvTokenizer fields = new CsvTokenizer();
+                int count = fields.tokenize(reader.lineBytes(), reader.lineStart(), reader.lineEnd());
+                // Trailing empty values are ignored
+                while (count > 0 && 0 == fields.length(count - 1)) {
+                    count--;
+                }
+                elements = new String[count];
+                elementCodes = new int[count];
+                for (int i = 0;i < count;++i) {
+                    elements[i] = fields.string(i);
+                    elementCodes[i] = symbols.intern(elements[i]);
+                }
             }
-
             reader.close();
         } catch (IOException ioe) {
-            ioe.printStackTrace(System.err);
+            // Reported by whoever loads the folder (See TestFolder.load)
+            failure = ioe;
         }
     }
 
@@ -118,17 +137,13 @@ public class DetectionLogSource implements EventSource {
                 sourceDevice.setOs(TestDevice.OS.Android);
             } // TODO other types, if this becomes true in future
 
-            Date read = new Date();
+            long read = System.currentTimeMillis();
 
             for (int i = 4;i < elements.length;++i) {
                 types.add(EventType.DetectionBroadcastIdLoggedBefore);
                 detectionCount++;
                 // Note: Using column index as the event pointer start/end value (NOT line number)
-                events.add(new Event(
-                    read, 
-                    EventType.DetectionBroadcastIdLoggedBefore, 
-                    new EventPointer(this,i,i)
-                ));
+                events.add(this, read, EventType.DetectionBroadcastIdLoggedBefore, i, i);
             }
         }
 
@@ -158,19 +173,9 @@ public class DetectionLogSource implements EventSource {
     }
 
     protected Event findNextByType(final EventType type) {
-        Event found = events.atIndex(lastIndex);
-        boolean matches = false;
-        while (!matches && null != found && lastIndex < events.size()) {
-            matches = (found.type() == type);
-            if (!matches) {
-                lastIndex++;
-                found = events.atIndex(lastIndex);
-            }
-        }
-        if (lastIndex > events.size()) {
-            lastIndex = events.size();
-        }
-        return found;
+        // Jump straight to the next match using the per type index
+        lastIndex = events.nextIndexOfType(type, lastIndex);
+        return events.atIndex(lastIndex);
     }
 
     @Override
@@ -196,6 +201,31 @@ public class DetectionLogSource implements EventSource {
         return findNextByType(type);
     }
 
+    @Override
+    public Exception getFailure() {
+        return failure;
+    }
+
+    @Override
+    public EventList events() {
+        return events;
+    }
+
+    @Override
+    public SymbolTable symbols() {
+        return symbols;
+    }
+
+    @Override
+    public int dataCode(long lineNumber) {
+        readElements(); // just in case
+
+        if (lineNumber < 0 || (elementCodes.length - 1) < lineNumber) {
+            return -1;
+        }
+        return elementCodes[(int)lineNumber];
+    }
+
     @Override
     public String text(long lineNumber) {
         readElements(); // just in case
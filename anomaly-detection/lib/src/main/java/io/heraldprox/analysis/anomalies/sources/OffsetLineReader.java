@@ -0,0 +1,158 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.sources;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads lines from a byte stream whilst tracking the byte offset at which each line starts.
+ * 
+ * Used instead of BufferedReader so that a source can later seek straight back to a line,
+ * and so that lines can be tokenized in place (See CsvTokenizer) rather than decoded first.
+ * Lines end with \n or \r\n, which are not included in the returned text.
+ */
+class OffsetLineReader implements Closeable {
+    protected final InputStream in;
+    protected byte[] buffer = new byte[64 * 1024];
+    protected int position = 0;
+    protected int limit = 0;
+    protected long bufferOffset = 0; // file offset of buffer[0]
+    protected long lineOffset = -1;
+    protected int lineStart = 0; // the last line returned, within buffer
+    protected int lineEnd = 0;
+    protected boolean lineTerminated = false;
+    protected boolean endOfStream = false;
+
+    OffsetLineReader(InputStream in) {
+        this(in, 0);
+    }
+
+    /**
+     * @param in Stream positioned at startOffset within its file
+     * @param startOffset The file offset of the first byte of the stream
+     */
+    OffsetLineReader(InputStream in, long startOffset) {
+        this.in = in;
+        this.bufferOffset = startOffset;
+    }
+
+    /**
+     * @return The next line, or null at the end of the stream
+     */
+    String readLine() throws IOException {
+        if (!nextLine()) {
+            return null;
+        }
+        return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Moves to the next line without decoding it. Its bytes are then available from
+     * lineBytes(), between lineStart() and lineEnd(), until the next call.
+     *
+     * @return false at the end of the stream
+     */
+    boolean nextLine() throws IOException {
+        int scan = position;
+        while (true) {
+            while (scan < limit) {
+                if ('\n' == buffer[scan]) {
+                    takeLine(scan, scan + 1);
+                    return true;
+                }
+                ++scan;
+            }
+            int scanned = scan - position;
+            if (endOfStream || !fill()) {
+                endOfStream = true;
+                if (position == limit) {
+                    return false;
+                }
+                // Final line without a newline
+                takeLine(limit, limit);
+                return true;
+            }
+            // fill() may have moved the unread bytes to the start of the buffer
+            scan = position + scanned;
+        }
+    }
+
+    byte[] lineBytes() {
+        return buffer;
+    }
+
+    int lineStart() {
+        return lineStart;
+    }
+
+    /**
+     * @return The index just past the last byte of the line, excluding the newline
+     */
+    int lineEnd() {
+        return lineEnd;
+    }
+
+    /**
+     * @return false if the line was the last in the stream and had no newline, so may still be being written
+     */
+    boolean lineTerminated() {
+        return lineTerminated;
+    }
+
+    /**
+     * @return The byte offset of the start of the line last returned by readLine()
+     */
+    long lineOffset() {
+        return lineOffset;
+    }
+
+    /**
+     * @return The byte offset just after the line last returned by readLine(), including its newline
+     */
+    long offset() {
+        return bufferOffset + position;
+    }
+
+    protected void takeLine(int end, int next) {
+        lineOffset = bufferOffset + position;
+        int textEnd = end;
+        if (textEnd > position && '\r' == buffer[textEnd - 1]) {
+            textEnd--;
+        }
+        lineStart = position;
+        lineEnd = textEnd;
+        lineTerminated = next > end;
+        position = next;
+    }
+
+    protected boolean fill() throws IOException {
+        if (position > 0) {
+            // Keep the partial line, and discard everything before it
+            int remaining = limit - position;
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+            bufferOffset += position;
+            position = 0;
+            limit = remaining;
+        } else if (limit == buffer.length) {
+            // A single line longer than the buffer
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read <= 0) {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,434 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.sources;
+
+import io.heraldprox.analysis.anomalies.Event;
+import io.heraldprox.analysis.anomalies.EventCursor;
+import io.heraldprox.analysis.anomalies.EventType;
+import io.heraldprox.analysis.anomalies.EventGroupSummary;
+import io.heraldprox.analysis.anomalies.EventSource;
+import io.heraldprox.analysis.anomalies.EventList;
+import io.heraldprox.analysis.anomalies.Metrics;
+import io.heraldprox.analysis.anomalies.SymbolTable;
+import io.heraldprox.analysis.anomalies.columns.IntColumn;
+import io.heraldprox.analysis.anomalies.columns.LongColumn;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Reads a contacts.csv file a window of lines at a time, rather than holding every event
+ * in memory as ContactLogSource does. For files larger than the heap.
+ *
+ * Only forward reads are supported: firstByType() and first() restart from the top of the
+ * file and nextByType() and next() read on, one window at a time. events() returns null.
+ * Payload accessors (address(), text(), etc.) for lines in the current window are served
+ * from memory. Older lines are re-read from the file, starting at the nearest window
+ * boundary recorded whilst reading.
+ *
+ * Memory use is bounded by the window size, plus one offset per window and the distinct
+ * values held in the SymbolTable.
+ */
+public class StreamingContactLogSource implements EventSource, Closeable {
+    public static final int DEFAULT_WINDOW_LINES = 64 * 1024;
+
+    protected File file;
+    protected SymbolTable symbols;
+    protected int windowLines;
+
+    protected EventGroupSummary summary = null;
+    protected IOException failure = null;
+    protected ContactLogFormat format = null;
+
+    // The current window of lines, starting at windowFirstLine
+    protected OffsetLineReader reader = null;
+    protected EventList window = new EventList();
+    protected long windowFirstLine = 1;
+    protected long nextLine = 1;
+    protected IntColumn sensorCodes = new IntColumn();
+    protected IntColumn idCodes = new IntColumn();
+    protected IntColumn dataCodes = new IntColumn();
+    protected int lastIndex = 0;
+    protected CsvTokenizer fields = new CsvTokenizer();
+
+    // Byte offset of the first line of each window (index w is line w * windowLines + 1), for re-reading older lines
+    protected LongColumn checkpoints = new LongColumn();
+    // The last line re-read (sensor, address and data), as callers normally ask for several values from the same line
+    protected long cachedLine = 0;
+    protected String[] cachedValues = null;
+
+    protected Metrics metrics = Metrics.NOOP;
+
+    public StreamingContactLogSource(File contactFile, SymbolTable symbols) {
+        this(contactFile, symbols, DEFAULT_WINDOW_LINES);
+    }
+
+    /**
+     * @param contactFile The contacts.csv file to read
+     * @param symbols Dictionary to encode values with, normally shared by every device in a test
+     * @param windowLines The number of lines to hold in memory at once
+     */
+    public StreamingContactLogSource(File contactFile, SymbolTable symbols, int windowLines) {
+        file = contactFile;
+        this.symbols = symbols;
+        this.windowLines = Math.max(1, windowLines);
+    }
+
+    /**
+     * Records the first pass and each window read, under the name of the folder holding the file (See Metrics).
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    protected String device() {
+        File folder = file.getAbsoluteFile().getParentFile();
+        return null == folder ? "" : folder.getName();
+    }
+
+    /**
+     * Reads the whole file once, without keeping any events.
+     */
+    @Override
+    public EventGroupSummary summarise() {
+        if (null != summary) {
+            return summary;
+        }
+        Metrics.Stage stage = metrics.stage("contacts.summarise", device());
+        Metrics.Timer timer = stage.start();
+        long lineCount = 0;
+        SortedSet<EventType> types = new TreeSet<EventType>();
+        try (OffsetLineReader counter = new OffsetLineReader(new FileInputStream(file))) {
+            ContactLogFormat counted = ContactLogFormat.fromHeader(counter.readLine());
+            if (null != counted) {
+                format = counted;
+                CsvTokenizer fields = new CsvTokenizer();
+                while (counter.nextLine()) {
+                    ++lineCount;
+                    checkpoint(lineCount, counter.lineOffset());
+                    fields.tokenize(counter.lineBytes(), counter.lineStart(), counter.lineEnd());
+                    EventType type = counted.eventType(fields);
+                    if (null != type) {
+                        types.add(type);
+                    }
+                }
+            }
+            stage.addBytes(counter.offset());
+        } catch (IOException ioe) {
+            // Reported by whoever loads the folder (See TestFolder.load)
+            failure = ioe;
+        }
+        summary = new EventGroupSummary(types, lineCount);
+        timer.stop();
+        stage.addRows(lineCount);
+        return summary;
+    }
+
+    protected void checkpoint(long lineNumber, long offset) {
+        if (1 == (lineNumber % windowLines) || 1 == windowLines) {
+            if ((lineNumber - 1) / windowLines == checkpoints.size()) {
+                checkpoints.add(offset);
+            }
+        }
+    }
+
+    /**
+     * Starts reading from the top of the file again, and reads the first window.
+     */
+    protected void restart() {
+        close();
+        window.clear();
+        windowFirstLine = 1;
+        nextLine = 1;
+        lastIndex = 0;
+        try {
+            reader = new OffsetLineReader(new FileInputStream(file));
+            format = ContactLogFormat.fromHeader(reader.readLine());
+            if (null == format) {
+                close();
+            }
+        } catch (IOException ioe) {
+            failure = ioe;
+            close();
+        }
+        readWindow();
+    }
+
+    /**
+     * Replaces the current window with the next windowLines lines of the file.
+     *
+     * @return false if there were no more lines to read
+     */
+    protected boolean readWindow() {
+        if (null == reader) {
+            return false;
+        }
+        Metrics.Stage stage = metrics.stage("contacts.window", device());
+        Metrics.Timer timer = stage.start();
+        long startOffset = reader.offset();
+        window.clear();
+        sensorCodes.clear();
+        idCodes.clear();
+        dataCodes.clear();
+        windowFirstLine = nextLine;
+        try {
+            int sensorCode = -1;
+            int idCode = -1;
+            int dataCode = -1;
+            while (sensorCodes.size() < windowLines && reader.nextLine()) {
+                long lineNumber = nextLine++;
+                checkpoint(lineNumber, reader.lineOffset());
+                fields.tokenize(reader.lineBytes(), reader.lineStart(), reader.lineEnd());
+                sensorCode = ContactLogFormat.intern(symbols, fields, format.sensorColumn, sensorCode);
+                idCode = ContactLogFormat.intern(symbols, fields, format.idColumn, idCode);
+                dataCode = ContactLogFormat.intern(symbols, fields, format.dataColumn, dataCode);
+                sensorCodes.add(sensorCode);
+                idCodes.add(idCode);
+                dataCodes.add(dataCode);
+
+                EventType type = format.eventType(fields);
+                if (null != type) {
+                    window.add(this, format.time(fields), type, lineNumber, lineNumber);
+                }
+            }
+            stage.addBytes(reader.offset() - startOffset);
+        } catch (IOException ioe) {
+            failure = ioe;
+            close();
+        }
+        timer.stop();
+        stage.addRows(sensorCodes.size());
+        stage.addEvents(window.size());
+        if (sensorCodes.size() < windowLines) {
+            // Reached the end of the file
+            close();
+        }
+        return sensorCodes.size() > 0;
+    }
+
+    protected Event findNext(final EventType type) {
+        while (true) {
+            int index = (null == type) ? lastIndex : window.nextIndexOfType(type, lastIndex);
+            if (index < window.size()) {
+                lastIndex = index;
+                return window.atIndex(index);
+            }
+            if (!readWindow()) {
+                lastIndex = window.size();
+                return null;
+            }
+            lastIndex = 0;
+        }
+    }
+
+    @Override
+    public boolean hasEvent() {
+        return lastIndex < window.size();
+    }
+
+    @Override
+    public Event first() {
+        restart();
+        return findNext(null);
+    }
+
+    @Override
+    public Event firstByType(EventType type) {
+        restart();
+        return findNext(type);
+    }
+
+    @Override
+    public Event next() {
+        lastIndex++;
+        return findNext(null);
+    }
+
+    @Override
+    public Event nextByType(EventType type) {
+        lastIndex++;
+        return findNext(type);
+    }
+
+    /**
+     * @return null, as events are not held in memory. Use firstByType() and nextByType()
+     */
+    @Override
+    public EventList events() {
+        return null;
+    }
+
+    /**
+     * Each cursor reads the file through its own window, so cursors do not affect each other
+     * or firstByType()/nextByType(). Events returned by a cursor remain readable after it moves on.
+     */
+    @Override
+    public EventCursor query(final Set<EventType> types, final long from, final long to) {
+        final StreamingContactLogSource reader = new StreamingContactLogSource(file, symbols, windowLines);
+        reader.setMetrics(metrics);
+        final EventType only = (null != types && 1 == types.size()) ? types.iterator().next() : null;
+        return new EventCursor() {
+            boolean started = false;
+
+            @Override
+            public Event next() {
+                Event e;
+                if (null == only) {
+                    e = started ? reader.next() : reader.first();
+                } else {
+                    e = started ? reader.nextByType(only) : reader.firstByType(only);
+                }
+                started = true;
+                while (null != e) {
+                    if ((null == types || types.contains(e.type())) && e.occurredAt() >= from && e.occurredAt() <= to) {
+                        return e;
+                    }
+                    e = (null == only) ? reader.next() : reader.nextByType(only);
+                }
+                return null;
+            }
+        };
+    }
+
+    @Override
+    public int[] indexesOfType(final EventType type) {
+        throw new UnsupportedOperationException("Streaming sources can only be read using firstByType() and nextByType()");
+    }
+
+    @Override
+    public Exception getFailure() {
+        return failure;
+    }
+
+    /**
+     * Releases the file handle held between windows. Reading again reopens it.
+     */
+    @Override
+    public void close() {
+        if (null != reader) {
+            try {
+                reader.close();
+            } catch (IOException ioe) {
+                // Nothing more to read anyway
+            }
+            reader = null;
+        }
+    }
+
+    protected boolean inWindow(long lineNumber) {
+        return lineNumber >= windowFirstLine && lineNumber < windowFirstLine + sensorCodes.size();
+    }
+
+    /**
+     * Re-reads a line from before the current window, starting at its window's checkpoint.
+     *
+     * @return The sensor, address and data values of the line, or null if the line has not been read yet
+     */
+    protected String[] valuesAt(long lineNumber) {
+        if (lineNumber < 1) {
+            return null;
+        }
+        if (lineNumber == cachedLine) {
+            return cachedValues;
+        }
+        int checkpoint = (int)((lineNumber - 1) / windowLines);
+        if (checkpoint >= checkpoints.size()) {
+            return null;
+        }
+        long offset = checkpoints.get(checkpoint);
+        try (FileInputStream in = new FileInputStream(file)) {
+            in.getChannel().position(offset);
+            OffsetLineReader lines = new OffsetLineReader(in, offset);
+            for (long current = (long)checkpoint * windowLines + 1;current <= lineNumber;++current) {
+                if (!lines.nextLine()) {
+                    return null;
+                }
+            }
+            CsvTokenizer line = new CsvTokenizer();
+            line.tokenize(lines.lineBytes(), lines.lineStart(), lines.lineEnd());
+            cachedValues = new String[] {
+                line.string(format.sensorColumn),
+                line.string(format.idColumn),
+                line.string(format.dataColumn)
+            };
+            cachedLine = lineNumber;
+            return cachedValues;
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        return null;
+    }
+
+    @Override
+    public String text(long lineNumber) {
+        // our indexes are EVENT numbers, so header is index 0, first data line is line/event 1
+        if (!inWindow(lineNumber) && null == valuesAt(lineNumber)) {
+            return "";
+        }
+        // Only return event data outside of the event description (I.e. only Source,Address,Data)
+        return sensor(lineNumber) + "," + address(lineNumber) + "," + data(lineNumber);
+    }
+
+    @Override
+    public String sensor(long lineNumber) {
+        if (inWindow(lineNumber)) {
+            return symbols.symbol(sensorCodes.get((int)(lineNumber - windowFirstLine)));
+        }
+        String[] values = valuesAt(lineNumber);
+        return null == values ? "" : values[0];
+    }
+
+    @Override
+    public String address(long lineNumber) {
+        if (inWindow(lineNumber)) {
+            return symbols.symbol(idCodes.get((int)(lineNumber - windowFirstLine)));
+        }
+        String[] values = valuesAt(lineNumber);
+        return null == values ? "" : values[1];
+    }
+
+    @Override
+    public String data(long lineNumber) {
+        if (inWindow(lineNumber)) {
+            return symbols.symbol(dataCodes.get((int)(lineNumber - windowFirstLine)));
+        }
+        String[] values = valuesAt(lineNumber);
+        return null == values ? "" : values[2];
+    }
+
+    @Override
+    public SymbolTable symbols() {
+        return symbols;
+    }
+
+    @Override
+    public int addressCode(long lineNumber) {
+        if (inWindow(lineNumber)) {
+            return idCodes.get((int)(lineNumber - windowFirstLine));
+        }
+        String[] values = valuesAt(lineNumber);
+        return null == values ? -1 : symbols.intern(values[1]);
+    }
+
+    @Override
+    public int dataCode(long lineNumber) {
+        if (inWindow(lineNumber)) {
+            return dataCodes.get((int)(lineNumber - windowFirstLine));
+        }
+        String[] values = valuesAt(lineNumber);
+        return null == values ? -1 : symbols.intern(values[2]);
+    }
+
+    @Override
+    public double rssi(long lineNumber) {
+        int code = dataCode(lineNumber);
+        return code < 0 ? Double.NaN : symbols.rssi(code);
+    }
+}
@@ -0,0 +1,155 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.sources;
+
+/**
+ * Decodes the fixed width "yyyy-MM-dd HH:mm:ss" timestamps of Herald log files, in UTC,
+ * straight from the characters or bytes of a line. Any text after the seconds (E.g.
+ * milliseconds or a zone offset) is ignored, as it was by the SimpleDateFormat this replaces.
+ *
+ * The last day decoded is cached, so lines from the same day only decode the time of day.
+ * Safe to use from many threads: the cache is a single immutable value, and a thread that
+ * misses it simply decodes the day itself.
+ */
+public class TimestampParser {
+    /** Returned when the text is not a timestamp of the expected form */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    /** The number of characters decoded */
+    public static final int LENGTH = 19;
+
+    protected static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    protected volatile Day lastDay = new Day(-1, 0);
+
+    /**
+     * @param text The text holding the timestamp
+     * @param offset The index of the first character of the timestamp
+     * @return The epoch time in milliseconds, or INVALID
+     */
+    public long parse(CharSequence text, int offset) {
+        if (offset < 0 || text.length() - offset < LENGTH) {
+            return INVALID;
+        }
+        int year = digits(text.charAt(offset), text.charAt(offset + 1), text.charAt(offset + 2), text.charAt(offset + 3));
+        int month = digits(text.charAt(offset + 5), text.charAt(offset + 6));
+        int day = digits(text.charAt(offset + 8), text.charAt(offset + 9));
+        int hour = digits(text.charAt(offset + 11), text.charAt(offset + 12));
+        int minute = digits(text.charAt(offset + 14), text.charAt(offset + 15));
+        int second = digits(text.charAt(offset + 17), text.charAt(offset + 18));
+        if ('-' != text.charAt(offset + 4) || '-' != text.charAt(offset + 7) || ' ' != text.charAt(offset + 10) ||
+            ':' != text.charAt(offset + 13) || ':' != text.charAt(offset + 16)) {
+            return INVALID;
+        }
+        return combine(year, month, day, hour, minute, second);
+    }
+
+    /**
+     * @param bytes ASCII (or UTF-8) bytes holding the timestamp
+     * @param offset The index of the first byte of the timestamp
+     * @param length The number of bytes available from offset
+     * @return The epoch time in milliseconds, or INVALID
+     */
+    public long parse(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < LENGTH || bytes.length - offset < LENGTH) {
+            return INVALID;
+        }
+        int year = digits((char)bytes[offset], (char)bytes[offset + 1], (char)bytes[offset + 2], (char)bytes[offset + 3]);
+        int month = digits((char)bytes[offset + 5], (char)bytes[offset + 6]);
+        int day = digits((char)bytes[offset + 8], (char)bytes[offset + 9]);
+        int hour = digits((char)bytes[offset + 11], (char)bytes[offset + 12]);
+        int minute = digits((char)bytes[offset + 14], (char)bytes[offset + 15]);
+        int second = digits((char)bytes[offset + 17], (char)bytes[offset + 18]);
+        if ('-' != bytes[offset + 4] || '-' != bytes[offset + 7] || ' ' != bytes[offset + 10] ||
+            ':' != bytes[offset + 13] || ':' != bytes[offset + 16]) {
+            return INVALID;
+        }
+        return combine(year, month, day, hour, minute, second);
+    }
+
+    protected long combine(int year, int month, int day, int hour, int minute, int second) {
+        if (year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0) {
+            return INVALID;
+        }
+        if (hour > 23 || minute > 59 || second > 59) {
+            return INVALID;
+        }
+        long dayStart = dayStart(year, month, day);
+        if (INVALID == dayStart) {
+            return INVALID;
+        }
+        return dayStart + ((hour * 60 + minute) * 60 + second) * 1000L;
+    }
+
+    protected long dayStart(int year, int month, int day) {
+        int key = (year * 100 + month) * 100 + day;
+        Day cached = lastDay;
+        if (cached.key == key) {
+            return cached.startMillis;
+        }
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            return INVALID;
+        }
+        long startMillis = epochDay(year, month, day) * MILLIS_PER_DAY;
+        lastDay = new Day(key, startMillis);
+        return startMillis;
+    }
+
+    /**
+     * Days since 1970-01-01 in the proleptic Gregorian calendar.
+     */
+    protected static long epochDay(int year, int month, int day) {
+        // Count from March, so the leap day is the last day of the year
+        long y = (month <= 2) ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    protected static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean leap = (0 == year % 4 && 0 != year % 100) || 0 == year % 400;
+                return leap ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    protected static int digits(char tens, char units) {
+        int t = tens - '0';
+        int u = units - '0';
+        if (t < 0 || t > 9 || u < 0 || u > 9) {
+            return -1;
+        }
+        return t * 10 + u;
+    }
+
+    protected static int digits(char thousands, char hundreds, char tens, char units) {
+        int high = digits(thousands, hundreds);
+        int low = digits(tens, units);
+        if (high < 0 || low < 0) {
+            return -1;
+        }
+        return high * 100 + low;
+    }
+
+    protected static class Day {
+        final int key;
+        final long startMillis;
+
+        Day(int key, long startMillis) {
+            this.key = key;
+            this.startMillis = startMillis;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.synthetic;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * What was injected into a generated test (See TestRunGenerator), to check analysis against.
+ */
+public class GroundTruth {
+    public static final String HEADER = "receiver,transmitter,from,to,durationSeconds";
+
+    protected final List<InjectedGap> gaps = new ArrayList<InjectedGap>();
+    protected final long start;
+    protected final long end;
+
+    public GroundTruth(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * A period in which a receiver logged no contact with a transmitter. from and to are
+     * the times of the readings either side, as read from the logs (to the second), so are
+     * exactly what a gap detector should find.
+     */
+    public static class InjectedGap {
+        // Device names, as in each device's detection.csv
+        public final String receiver;
+        public final String transmitter;
+        public final long from;
+        public final long to;
+
+        public InjectedGap(String receiver, String transmitter, long from, long to) {
+            this.receiver = receiver;
+            this.transmitter = transmitter;
+            this.from = from;
+            this.to = to;
+        }
+
+        public long durationMillis() {
+            return to - from;
+        }
+
+        @Override
+        public String toString() {
+            return receiver + "," + transmitter + "," + Instant.ofEpochMilli(from) + "," + Instant.ofEpochMilli(to) + "," + (durationMillis() / 1000);
+        }
+    }
+
+    synchronized void add(InjectedGap gap) {
+        gaps.add(gap);
+    }
+
+    /**
+     * @return Every gap, ordered by receiver, transmitter then start
+     */
+    public synchronized List<InjectedGap> getGaps() {
+        List<InjectedGap> sorted = new ArrayList<InjectedGap>(gaps);
+        Collections.sort(sorted, Comparator
+            .comparing((InjectedGap g) -> g.receiver)
+            .thenComparing((InjectedGap g) -> g.transmitter)
+            .thenComparingLong((InjectedGap g) -> g.from));
+        return sorted;
+    }
+
+    /**
+     * @return Gaps longer than the given length, I.E. those a gap detector with this minimum interval should find
+     */
+    public List<InjectedGap> getGapsLongerThan(long minimumIntervalMillis) {
+        List<InjectedGap> longer = new ArrayList<InjectedGap>();
+        for (InjectedGap gap : getGaps()) {
+            if (gap.durationMillis() > minimumIntervalMillis) {
+                longer.add(gap);
+            }
+        }
+        return longer;
+    }
+
+    /**
+     * @return Epoch milliseconds of the first possible event
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return Epoch milliseconds just after the last possible event
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Writes the gaps as csv, one per line, with times in ISO 8601 UTC.
+     */
+    public void write(File csv) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(csv.toPath(), StandardCharsets.UTF_8)) {
+            out.write(HEADER);
+            out.write('\n');
+            for (InjectedGap gap : getGaps()) {
+                out.write(gap.toString());
+                out.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,441 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies.synthetic;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a generated test run, laid out as a real one is (See TestFolder), for testing the
+ * analysis at sizes we have no real data for.
+ *
+ * Each device gets a folder with a detection.csv (its name, OS and broadcast ID, then those
+ * of the other devices) and a contacts.csv in the same layout as the Herald app writes. In
+ * contacts.csv every other device is measured (RSSI) at random intervals averaging the RSSI
+ * interval. Devices change address every address rotation period, at different times, and
+ * each receiver logs a detect and a payload read (of the broadcast ID) the first time it sees
+ * a new address, as Herald does.
+ *
+ * Gaps are injected per receiver and transmitter pair, at random (gaps per pair per day, of
+ * lengths between the minimum and maximum) and as added with addGap. Nothing is logged for
+ * the pair during a gap. The GroundTruth returned (and written to ground-truth.csv alongside
+ * the device folders) holds the readings either side of each gap.
+ *
+ * The same seed and settings always write the same files, however many devices are written at once.
+ */
+public class TestRunGenerator {
+    // 2022-11-30 00:00:00 UTC
+    public static final long DEFAULT_START = 1669766400000L;
+    public static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    protected static final String HEADER = "time,sensor,id,detect,read,measure,share,visit,detectHerald,delete,data";
+    protected static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS'+0000'").withZone(ZoneOffset.UTC);
+    protected static final String ID_CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+
+    protected int devices = 3;
+    protected long start = DEFAULT_START;
+    protected long durationMillis = DAY_MILLIS;
+    protected long rssiIntervalMillis = 4000;
+    protected long addressRotationMillis = 15 * 60 * 1000;
+    protected double gapsPerPairPerDay = 1.0;
+    protected long minimumGapMillis = 25 * 60 * 1000;
+    protected long maximumGapMillis = 90 * 60 * 1000;
+    protected long seed = 1;
+    protected int parallelism = 1;
+    // Each is receiver, transmitter, start (from the test start) and length
+    protected List<long[]> addedGaps = new ArrayList<long[]>();
+
+    public void setDevices(int devices) {
+        this.devices = devices;
+    }
+
+    public int getDevices() {
+        return devices;
+    }
+
+    /**
+     * @param start Epoch milliseconds of the start of the test
+     */
+    public void setStart(long start) {
+        this.start = start;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * @param rssiIntervalMillis Mean time between RSSI readings of each transmitter by each receiver
+     */
+    public void setRssiIntervalMillis(long rssiIntervalMillis) {
+        this.rssiIntervalMillis = rssiIntervalMillis;
+    }
+
+    public void setAddressRotationMillis(long addressRotationMillis) {
+        this.addressRotationMillis = addressRotationMillis;
+    }
+
+    /**
+     * @param gapsPerPairPerDay Mean number of random gaps per receiver and transmitter pair per day. 0 for none
+     * @param minimumGapMillis Shortest random gap
+     * @param maximumGapMillis Longest random gap
+     */
+    public void setRandomGaps(double gapsPerPairPerDay, long minimumGapMillis, long maximumGapMillis) {
+        this.gapsPerPairPerDay = gapsPerPairPerDay;
+        this.minimumGapMillis = minimumGapMillis;
+        this.maximumGapMillis = Math.max(minimumGapMillis, maximumGapMillis);
+    }
+
+    /**
+     * Injects a gap in addition to any random ones.
+     *
+     * @param receiver Index of the device that does not log the transmitter
+     * @param transmitter Index of the device not logged
+     * @param fromMillis Start of the gap, from the start of the test
+     * @param lengthMillis How long nothing is logged for
+     */
+    public void addGap(int receiver, int transmitter, long fromMillis, long lengthMillis) {
+        addedGaps.add(new long[] {receiver, transmitter, fromMillis, lengthMillis});
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param parallelism The most devices to write at once
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @return The name of the device, used for its folder and in its detection.csv
+     */
+    public static String deviceName(int device) {
+        return String.format("Phone%03d", device);
+    }
+
+    /**
+     * Deletes a written test, E.g. from a temporary folder, with everything in it.
+     */
+    public static void delete(File testFolder) {
+        File[] children = testFolder.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        testFolder.delete();
+    }
+
+    /**
+     * Writes one folder per device into testFolder, which is created if needed.
+     *
+     * @return The gaps injected
+     */
+    public GroundTruth write(File testFolder) throws IOException {
+        if (devices < 2) {
+            throw new IllegalArgumentException("A test needs at least 2 devices, not " + devices);
+        }
+        if (rssiIntervalMillis <= 0 || addressRotationMillis <= 0) {
+            throw new IllegalArgumentException("RSSI interval and address rotation must be positive");
+        }
+        testFolder.mkdirs();
+        final GroundTruth truth = new GroundTruth(start, start + durationMillis);
+
+        // Shared by every device's logs
+        Random random = new Random(seed);
+        final String[] broadcastIds = new String[devices];
+        final long[] rotationPhases = new long[devices];
+        Set<String> used = new HashSet<String>();
+        for (int i = 0;i < devices;++i) {
+            String id;
+            do {
+                StringBuilder chars = new StringBuilder(6);
+                for (int c = 0;c < 6;++c) {
+                    chars.append(ID_CHARACTERS.charAt(random.nextInt(ID_CHARACTERS.length())));
+                }
+                id = chars.toString();
+            } while (!used.add(id));
+            broadcastIds[i] = id;
+            rotationPhases[i] = (long)(random.nextDouble() * addressRotationMillis);
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0;i < devices;++i) {
+            final int receiver = i;
+            final File folder = new File(testFolder, deviceName(i));
+            tasks.add(() -> {
+                writeDevice(folder, receiver, broadcastIds, rotationPhases, truth);
+                return null;
+            });
+        }
+        ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, devices));
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst writing devices", ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException)ee.getCause();
+            }
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)ee.getCause();
+            }
+            throw new IOException(ee.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        truth.write(new File(testFolder, "ground-truth.csv"));
+        return truth;
+    }
+
+    protected void writeDevice(File folder, int receiver, String[] broadcastIds, long[] rotationPhases, GroundTruth truth) throws IOException {
+        folder.mkdirs();
+        StringBuilder detection = new StringBuilder();
+        detection.append(deviceName(receiver)).append(',').append(2 == receiver % 3 ? "iOS,14.7.1," : "Android,30,").append(broadcastIds[receiver]);
+        for (int other = 0;other < devices;++other) {
+            if (other != receiver) {
+                detection.append(',').append(broadcastIds[other]);
+            }
+        }
+        Files.write(new File(folder, "detection.csv").toPath(), detection.toString().getBytes(StandardCharsets.UTF_8));
+
+        // Every transmitter's next reading, so that rows are written in time order
+        PriorityQueue<Pair> pairs = new PriorityQueue<Pair>(Comparator.comparingLong((Pair p) -> p.next));
+        for (int transmitter = 0;transmitter < devices;++transmitter) {
+            if (transmitter != receiver) {
+                pairs.add(new Pair(receiver, transmitter));
+            }
+        }
+        long end = start + durationMillis;
+        StringBuilder row = new StringBuilder(96);
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(new File(folder, "contacts.csv").toPath()), StandardCharsets.UTF_8), 1 << 20)) {
+            // As the app writes it, with no newline after the last line
+            out.write(HEADER);
+            while (!pairs.isEmpty()) {
+                Pair pair = pairs.poll();
+                long time = pair.next;
+                if (time >= end) {
+                    if (pair.inGap) {
+                        // Runs to the end, as a detector given the whole test would report it
+                        truth.add(new GroundTruth.InjectedGap(deviceName(receiver), deviceName(pair.transmitter), asRead(pair.lastReading), end));
+                    }
+                    continue;
+                }
+                long gapEnd = pair.gapEndAt(time);
+                if (gapEnd > time) {
+                    pair.inGap = pair.inGap || Long.MIN_VALUE != pair.lastReading;
+                    pair.next = gapEnd;
+                    pairs.add(pair);
+                    continue;
+                }
+                if (pair.inGap) {
+                    truth.add(new GroundTruth.InjectedGap(deviceName(receiver), deviceName(pair.transmitter), asRead(pair.lastReading), asRead(time)));
+                    pair.inGap = false;
+                }
+
+                long rotation = (time - start + rotationPhases[pair.transmitter]) / addressRotationMillis;
+                String address = address(pair.transmitter, rotation);
+                String timestamp = TIME.format(Instant.ofEpochMilli(time));
+                if (rotation != pair.rotation) {
+                    pair.rotation = rotation;
+                    row.setLength(0);
+                    row.append('\n').append(timestamp).append(",BLE,").append(address).append(",1,,,,,,,");
+                    row.append('\n').append(timestamp).append(",BLE,").append(address).append(",,2,,,,,,").append(broadcastIds[pair.transmitter]);
+                    out.append(row);
+                }
+                row.setLength(0);
+                row.append('\n').append(timestamp).append(",BLE,").append(address).append(",,,3,,,,,RSSI:").append(pair.rssi());
+                out.append(row);
+
+                pair.lastReading = time;
+                pair.next = time + rssiIntervalMillis / 2 + (long)(pair.random.nextDouble() * rssiIntervalMillis);
+                pairs.add(pair);
+            }
+        }
+    }
+
+    /**
+     * @return The time as analysis reads it from the logs, to the whole second (See TimestampParser)
+     */
+    protected static long asRead(long time) {
+        return time - Math.floorMod(time, 1000L);
+    }
+
+    /**
+     * @return The transmitter's MAC address during the given rotation, the same for every receiver
+     */
+    protected String address(int transmitter, long rotation) {
+        long bits = seed * 0xD6E8FEB86659FD93L ^ (transmitter + 1) * 0x9E3779B97F4A7C15L ^ (rotation + 1) * 0xC2B2AE3D27D4EB4FL;
+        bits ^= bits >>> 29;
+        bits *= 0xBF58476D1CE4E5B9L;
+        bits ^= bits >>> 32;
+        StringBuilder mac = new StringBuilder(17);
+        for (int i = 0;i < 6;++i) {
+            if (i > 0) {
+                mac.append(':');
+            }
+            int octet = (int)((bits >>> (i * 8)) & 0xFF);
+            mac.append(Character.toUpperCase(Character.forDigit(octet >> 4, 16))).append(Character.toUpperCase(Character.forDigit(octet & 0xF, 16)));
+        }
+        return mac.toString();
+    }
+
+    /**
+     * One receiver's view of one transmitter: when it is next read, and when it is not.
+     */
+    protected class Pair {
+        final int transmitter;
+        // Per pair, so that a pair's readings do not depend on the other devices
+        final Random random;
+        final double baseRssi;
+        final List<long[]> gaps = new ArrayList<long[]>();
+        int nextGap = 0;
+        long next;
+        long lastReading = Long.MIN_VALUE;
+        long rotation = Long.MIN_VALUE;
+        boolean inGap = false;
+
+        Pair(int receiver, int transmitter) {
+            this.transmitter = transmitter;
+            random = new Random(seed * 31 + receiver * 1000003L + transmitter);
+            baseRssi = -45 - random.nextInt(35);
+            next = start + (long)(random.nextDouble() * rssiIntervalMillis);
+
+            List<long[]> wanted = new ArrayList<long[]>();
+            if (gapsPerPairPerDay > 0) {
+                // Exponential times between gaps. After the first reading, and ending before the end of the test
+                double meanBetween = DAY_MILLIS / gapsPerPairPerDay;
+                long at = start + rssiIntervalMillis * 2;
+                while (true) {
+                    at += (long)(-Math.log(1 - random.nextDouble()) * meanBetween);
+                    long length = minimumGapMillis + (long)(random.nextDouble() * (maximumGapMillis - minimumGapMillis));
+                    if (at + length >= start + durationMillis) {
+                        break;
+                    }
+                    wanted.add(new long[] {at, at + length});
+                    at += length;
+                }
+            }
+            for (long[] added : addedGaps) {
+                if (added[0] == receiver && added[1] == transmitter) {
+                    wanted.add(new long[] {start + added[2], start + added[2] + added[3]});
+                }
+            }
+            wanted.sort(Comparator.comparingLong((long[] gap) -> gap[0]));
+            // Overlapping gaps are merged
+            for (long[] gap : wanted) {
+                long[] last = gaps.isEmpty() ? null : gaps.get(gaps.size() - 1);
+                if (null != last && gap[0] <= last[1]) {
+                    last[1] = Math.max(last[1], gap[1]);
+                } else {
+                    gaps.add(gap);
+                }
+            }
+        }
+
+        /**
+         * @return The end of the gap time is in, or time if it is not in one
+         */
+        long gapEndAt(long time) {
+            while (nextGap < gaps.size() && gaps.get(nextGap)[1] <= time) {
+                nextGap++;
+            }
+            if (nextGap < gaps.size() && gaps.get(nextGap)[0] <= time) {
+                return gaps.get(nextGap)[1];
+            }
+            return time;
+        }
+
+        /**
+         * @return An RSSI reading, to one decimal place
+         */
+        String rssi() {
+            double rssi = Math.min(-20, baseRssi + random.nextGaussian() * 3);
+            return Double.toString(Math.round(rssi * 10) / 10.0);
+        }
+    }
+
+    public static void main(String[] commandLine) {
+        List<String> options = new ArrayList<String>();
+        List<String> positional = new ArrayList<String>();
+        for (String arg : commandLine) {
+            if (arg.startsWith("--")) {
+                options.add(arg);
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (positional.size() < 3) {
+            System.err.println("Usage: TestRunGenerator [--seed=1] [--gaps-per-day=1.0] [--rssi-interval-seconds=4] [--start='2022-11-30 00:00:00'] ./path/to/new/folder devices hours");
+            System.exit(1);
+        }
+        TestRunGenerator generator = new TestRunGenerator();
+        try {
+            generator.setDevices(Integer.parseInt(positional.get(1)));
+            generator.setDurationMillis((long)(Double.parseDouble(positional.get(2)) * 60 * 60 * 1000));
+            for (String option : options) {
+                String value = option.substring(option.indexOf('=') + 1);
+                if (option.startsWith("--seed=")) {
+                    generator.setSeed(Long.parseLong(value));
+                } else if (option.startsWith("--gaps-per-day=")) {
+                    generator.setRandomGaps(Double.parseDouble(value), generator.minimumGapMillis, generator.maximumGapMillis);
+                } else if (option.startsWith("--rssi-interval-seconds=")) {
+                    generator.setRssiIntervalMillis((long)(Double.parseDouble(value) * 1000));
+                } else if (option.startsWith("--start=")) {
+                    generator.setStart(Instant.from(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC).parse(value)).toEpochMilli());
+                } else {
+                    System.err.println("Unknown option '" + option + "'");
+                    System.exit(1);
+                }
+            }
+        } catch (RuntimeException re) {
+            System.err.println("Could not read arguments: " + re.getMessage());
+            System.exit(1);
+        }
+        generator.setParallelism(Runtime.getRuntime().availableProcessors());
+
+        File folder = new File(positional.get(0));
+        try {
+            GroundTruth truth = generator.write(folder);
+            System.err.println("Wrote " + generator.getDevices() + " devices with " + truth.getGaps().size() + " gaps to " + folder);
+        } catch (IOException ioe) {
+            System.err.println("Could not write test: " + ioe);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import io.heraldprox.analysis.anomalies.detection.RssiGapDetection;
+import io.heraldprox.analysis.anomalies.sinks.CountingAnomalySink;
+import io.heraldprox.analysis.anomalies.sinks.CsvAnomalySink;
+import io.heraldprox.analysis.anomalies.sinks.JsonLinesAnomalySink;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+class AnomalySinkTest {
+    Date date(String text) throws ParseException {
+        // Logged in UTC
+        SimpleDateFormat utc = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.UK);
+        utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return utc.parse(text);
+    }
+
+    @Test void sinkGetsSameAnomaliesAsDetect() throws ParseException {
+        File base = new File(System.getenv("PWD"));
+        TestFolder folder = new TestFolder(new File(base,"lib/data/2022-12-03-02"));
+        DetectorEngine engine = new DetectorEngine(new RssiGapDetection(new Correlator(folder.getDeviceFolders()), 20 * 60 * 1000));
+        Date startDate = date("2022-11-30 00:00:00");
+        Date endDate = date("2022-12-03 00:00:00");
+
+        List<String> returned = new ArrayList<String>();
+        for (Anomaly an : engine.detect(folder, startDate, endDate)) {
+            returned.add(an.toString());
+        }
+        final List<String> sunk = new ArrayList<String>();
+        engine.detect(folder, startDate, endDate, an -> sunk.add(an.toString()));
+        assertNotEquals(0,sunk.size(),"Should be gaps over several days");
+
+        // Not held to be sorted, so compare in the same order
+        List<String> sortedSunk = new ArrayList<String>(sunk);
+        Collections.sort(returned);
+        Collections.sort(sortedSunk);
+        assertEquals(returned,sortedSunk,"Sink should be given the same anomalies as detect() returns");
+
+        final List<String> parallel = new ArrayList<String>();
+        engine.setParallelism(4);
+        engine.detect(folder, startDate, endDate, an -> parallel.add(an.toString()));
+        assertEquals(sunk,parallel,"Scanning devices in parallel should not change the order anomalies reach the sink");
+        folder.close();
+    }
+
+    @Test void writesOneLinePerAnomaly() throws ParseException {
+        File base = new File(System.getenv("PWD"));
+        TestFolder folder = new TestFolder(new File(base,"lib/data/2022-12-03-02"));
+        DetectorEngine engine = new DetectorEngine(new RssiGapDetection(new Correlator(folder.getDeviceFolders()), 20 * 60 * 1000));
+        Date startDate = date("2022-11-30 00:00:00");
+        Date endDate = date("2022-12-03 00:00:00");
+
+        CountingAnomalySink counter = new CountingAnomalySink();
+        engine.detect(folder, startDate, endDate, counter);
+        assertNotEquals(0,counter.getCount(),"Should be gaps over several days");
+        assertEquals(Long.valueOf(counter.getCount()),counter.getCountsByDetector().get("RssiGapDetection"),"All anomalies are RSSI gaps");
+
+        ByteArrayOutputStream csvBytes = new ByteArrayOutputStream();
+        CsvAnomalySink csv = new CsvAnomalySink(csvBytes);
+        engine.detect(folder, startDate, endDate, csv);
+        csv.close();
+        String[] rows = new String(csvBytes.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(counter.getCount() + 1,rows.length,"Should be a header then one row per anomaly");
+        assertEquals(CsvAnomalySink.HEADER,rows[0],"Header row incorrect");
+        assertTrue(rows[1].startsWith("RssiGapDetection,"),"Row should start with the detector: " + rows[1]);
+        assertEquals(8,rows[1].split(",").length,"Row should have a value per column: " + rows[1]);
+
+        ByteArrayOutputStream jsonBytes = new ByteArrayOutputStream();
+        JsonLinesAnomalySink json = new JsonLinesAnomalySink(jsonBytes);
+        engine.detect(folder, startDate, endDate, json);
+        json.close();
+        String[] lines = new String(jsonBytes.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(counter.getCount(),lines.length,"Should be one line per anomaly");
+        for (String line : lines) {
+            assertTrue(line.startsWith("{\"detector\":\"RssiGapDetection\",") && line.endsWith("}"),"Line should be a JSON object: " + line);
+        }
+        folder.close();
+    }
+}
@@ -11,8 +11,19 @@ import io.heraldprox.analysis.anomalies.DeviceFolder;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -23,6 +34,13 @@ import java.util.Collection;
 import java.util.Iterator;
 
 class AnomalyTest {
+    Date date(String text) throws ParseException {
+        // Logged in UTC
+        SimpleDateFormat utc = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.UK);
+        utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return utc.parse(text);
+    }
+
     @Test void foundLongRssiGapForA70FromA40() throws ParseException {
         File base = new File(System.getenv("PWD"));
         File rawFolder = new File(base,"lib/data/2022-12-03-01");
@@ -31,17 +49,241 @@ class AnomalyTest {
 
         Correlator c = new Correlator(folder.getDeviceFolders());
         RssiGapDetection gap = new RssiGapDetection(c, 20 * 60 * 1000);
-        SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.UK);
-        Date startDate = dateFormatter.parse("2022-11-29 22:21:00.000+0000");
-        Date endDate = dateFormatter.parse("2022-11-29 23:59:00.000+0000");
+        Date startDate = date("2022-11-29 22:21:00");
+        Date endDate = date("2022-11-29 23:59:00");
         Collection<Anomaly> anomalies = gap.detect(folder, startDate, endDate);
 
-        // assertNotEquals(0,anomalies.size(),"There should be some anomalies");
-        // None of these anomalies in this short test data!
-        assertEquals(0,anomalies.size(),"Anomaly count wrong");
+        // Only the A40's gap in reading the A70 in this short test data
+        assertEquals(1,anomalies.size(),"Anomaly count wrong");
+
+        Iterator<Anomaly> anIter = anomalies.iterator();
+        Anomaly an = anIter.next();
+        assertEquals("SM-A405FN",an.receiver.getDeviceTypeString(),"Gap should be read by the A40");
+        assertEquals("SM-A705FN",an.transmitter.getDeviceTypeString(),"Gap should be in reading the A70");
+        assertEquals(1761,(an.to.getTime() - an.from.getTime()) / 1000,"Gap length wrong");
+        assertEquals(date("2022-11-29 22:23:42"),an.from,"Gap start wrong");
+        assertEquals(date("2022-11-29 22:53:03"),an.to,"Gap end wrong");
+        folder.close();
+    }
+
+    @Test void runsDetectorsInOneScan() throws ParseException {
+        File base = new File(System.getenv("PWD"));
+        File rawFolder = new File(base,"lib/data/2022-12-03-01");
+        TestFolder folder = new TestFolder(rawFolder);
+        Correlator c = new Correlator(folder.getDeviceFolders());
+        Date startDate = date("2022-11-29 22:21:00");
+        Date endDate = date("2022-11-29 23:59:00");
+
+        RssiGapDetection gap = new RssiGapDetection(c, 20 * 60 * 1000);
+        List<String> alone = new ArrayList<String>();
+        for (Anomaly an : gap.detect(folder, startDate, endDate)) {
+            alone.add(an.toString());
+        }
+
+        // Counts the measure events it is shown
+        final AtomicInteger visited = new AtomicInteger();
+        ScanDetector counter = new ScanDetector() {
+            public Collection<Anomaly> detect(TestFolder testRun, Date startBound, Date endBound) {
+                return new DetectorEngine(this).detect(testRun, startBound, endBound);
+            }
+
+            public String describe(Anomaly anomaly) {
+                return "";
+            }
+
+            public DetectorScan startScan(TestFolder testRun, DeviceFolder receiver, Date startBound, Date endBound) {
+                return new DetectorScan() {
+                    public Set<EventType> types() {
+                        return EnumSet.of(EventType.ContactMeasure);
+                    }
+
+                    public void visit(Event event) {
+                        assertEquals(EventType.ContactMeasure,event.type(),"Should only visit measure events");
+                        visited.incrementAndGet();
+                    }
+
+                    public Collection<Anomaly> finish() {
+                        return new ArrayList<Anomaly>();
+                    }
+                };
+            }
+        };
+
+        DetectorEngine engine = new DetectorEngine(gap, counter);
+        List<String> together = new ArrayList<String>();
+        for (Anomaly an : engine.detect(folder, startDate, endDate)) {
+            together.add(an.toString());
+        }
+        assertEquals(alone,together,"Sharing a scan should not change the anomalies found");
+
+        int expected = 0;
+        for (DeviceFolder df : folder.getDeviceFolders()) {
+            for (EventGroup eg : df.getEventGroups()) {
+                EventCursor cursor = eg.source.query(EnumSet.of(EventType.ContactMeasure), startDate.getTime(), endDate.getTime());
+                for (Event e = cursor.next();null != e;e = cursor.next()) {
+                    expected++;
+                }
+            }
+        }
+        assertNotEquals(0,expected,"Should be measure events in the window");
+        assertEquals(expected,visited.get(),"Each measure event in the window should be visited once");
+        folder.close();
+    }
+
+    @Test void scansDevicesInParallelInSameOrder() throws ParseException {
+        File base = new File(System.getenv("PWD"));
+        File rawFolder = new File(base,"lib/data/2022-12-03-02");
+        Date startDate = date("2022-11-30 00:00:00");
+        Date endDate = date("2022-12-03 00:00:00");
+
+        TestFolder sequentialFolder = new TestFolder(rawFolder);
+        DetectorEngine sequential = new DetectorEngine(new RssiGapDetection(new Correlator(sequentialFolder.getDeviceFolders()), 20 * 60 * 1000));
+        List<String> expected = new ArrayList<String>();
+        for (Anomaly an : sequential.detect(sequentialFolder, startDate, endDate)) {
+            expected.add(an.toString());
+        }
+        assertNotEquals(0,expected.size(),"Should be gaps over several days");
+
+        TestFolder parallelFolder = new TestFolder(rawFolder);
+        DetectorEngine parallel = new DetectorEngine(new RssiGapDetection(new Correlator(parallelFolder.getDeviceFolders()), 20 * 60 * 1000));
+        parallel.setParallelism(4);
+        List<String> found = new ArrayList<String>();
+        for (Anomaly an : parallel.detect(parallelFolder, startDate, endDate)) {
+            found.add(an.toString());
+        }
+        assertEquals(expected,found,"Scanning devices in parallel should not change the anomalies or their order");
+        sequentialFolder.close();
+        parallelFolder.close();
+    }
+
+    @Test void evidenceRefersToContactLogLines() throws ParseException, IOException {
+        File base = new File(System.getenv("PWD"));
+        File rawFolder = new File(base,"lib/data/2022-12-03-02");
+        TestFolder folder = new TestFolder(rawFolder);
+        Date startDate = date("2022-11-30 00:00:00");
+        Date endDate = date("2022-12-03 00:00:00");
+        Collection<Anomaly> anomalies = new RssiGapDetection(new Correlator(folder.getDeviceFolders()), 20 * 60 * 1000).detect(folder, startDate, endDate);
+        assertNotEquals(0,anomalies.size(),"Should be gaps over several days");
+
+        Map<TestDevice,List<String>> lines = new HashMap<TestDevice,List<String>>();
+        for (DeviceFolder df : folder.getDeviceFolders()) {
+            lines.put(df.getDevice(), Files.readAllLines(new File(df.getFolder(),"contacts.csv").toPath()));
+        }
+        for (Anomaly an : anomalies) {
+            Evidence evidence = an.evidence;
+            assertNotEquals(0,evidence.size(),"Gap should have evidence");
+            // Ended gaps hold the reading that ended them first, then the one before the gap
+            assertEquals(an.from.getTime(),evidence.occurredAt(evidence.size() - 1),"Gap should start at its last reading");
+            if (evidence.size() > 1) {
+                assertEquals(an.to.getTime(),evidence.occurredAt(0),"Gap should end at its next reading");
+            }
+            for (int i = 0;i < evidence.size();++i) {
+                assertEquals(EventType.ContactMeasure,evidence.typeAt(i),"Evidence should be RSSI readings");
+                String line = lines.get(an.receiver).get((int)evidence.startLineAt(i));
+                for (String value : evidence.text(i).split(",")) {
+                    assertTrue(line.contains(value),"Evidence '" + evidence.text(i) + "' should be from line: " + line);
+                }
+            }
+        }
+        folder.close();
+    }
+
+    @Test void followsLogsAsTheyAreWritten() throws ParseException, IOException {
+        File base = new File(System.getenv("PWD"));
+        File rawFolder = new File(base,"lib/data/2022-12-03-01");
+        Date startDate = date("2022-11-29 22:00:00");
+
+        // Copy the test, with only the first half of each contacts.csv written so far
+        File liveFolder = Files.createTempDirectory("herald-test").toFile();
+        List<File> copied = new ArrayList<File>();
+        try {
+            for (File device : rawFolder.listFiles(File::isDirectory)) {
+                File liveDevice = new File(liveFolder, device.getName());
+                assertTrue(liveDevice.mkdir(),"Could not create device folder");
+                copied.add(liveDevice);
+                for (File log : device.listFiles()) {
+                    File liveLog = new File(liveDevice, log.getName());
+                    copied.add(0, liveLog);
+                    byte[] all = Files.readAllBytes(log.toPath());
+                    Files.write(liveLog.toPath(), log.getName().equals("contacts.csv") ? Arrays.copyOf(all, all.length / 2) : all);
+                }
+            }
+
+            try (TestFolder live = new TestFolder(liveFolder)) {
+                for (DeviceFolder df : live.getDeviceFolders()) {
+                    df.setFollowing(true);
+                }
+                DetectorFollower follower = new DetectorEngine(new RssiGapDetection(new Correlator(live.getDeviceFolders()), 20 * 60 * 1000)).follow(live, startDate);
+                // Latest version of each anomaly returned, by devices and start
+                Map<String,Anomaly> followed = new TreeMap<String,Anomaly>();
+                for (Anomaly an : follower.poll()) {
+                    followed.put(an.receiver.getDeviceTypeString() + an.transmitter.getDeviceTypeString() + an.from.getTime(), an);
+                }
+                Date halfway = follower.getNow();
+                assertNotNull(halfway,"Should have read events from the first half");
+                assertEquals(0,follower.poll().size(),"Nothing new has been logged");
+
+                for (File device : rawFolder.listFiles(File::isDirectory)) {
+                    byte[] all = Files.readAllBytes(new File(device,"contacts.csv").toPath());
+                    byte[] rest = Arrays.copyOfRange(all, all.length / 2, all.length);
+                    Files.write(new File(new File(liveFolder, device.getName()),"contacts.csv").toPath(), rest, StandardOpenOption.APPEND);
+                    if ('\n' != all[all.length - 1]) {
+                        Files.write(new File(new File(liveFolder, device.getName()),"contacts.csv").toPath(), new byte[] {'\n'}, StandardOpenOption.APPEND);
+                    }
+                }
+                for (Anomaly an : follower.poll()) {
+                    followed.put(an.receiver.getDeviceTypeString() + an.transmitter.getDeviceTypeString() + an.from.getTime(), an);
+                }
+                assertTrue(follower.getNow().after(halfway),"Should have read later events");
+
+                // The same gaps as reading the whole of each log at once. Ongoing gaps run to each receiver's latest reading, not a shared end
+                TestFolder whole = new TestFolder(rawFolder);
+                Map<String,Anomaly> expected = new TreeMap<String,Anomaly>();
+                for (Anomaly an : new RssiGapDetection(new Correlator(whole.getDeviceFolders()), 20 * 60 * 1000).detect(whole, startDate, follower.getNow())) {
+                    expected.put(an.receiver.getDeviceTypeString() + an.transmitter.getDeviceTypeString() + an.from.getTime(), an);
+                }
+                assertNotEquals(0,expected.size(),"Should be gaps in the whole test");
+                assertEquals(expected.keySet(),followed.keySet(),"Following should find the same gaps as reading the whole test");
+                for (Map.Entry<String,Anomaly> gap : expected.entrySet()) {
+                    if (gap.getValue().evidence.size() > 1) {
+                        assertEquals(gap.getValue().toString(),followed.get(gap.getKey()).toString(),"Ended gap differs when following");
+                    }
+                }
+                whole.close();
+            }
+        } finally {
+            for (File file : copied) {
+                file.delete();
+            }
+            liveFolder.delete();
+        }
+    }
+
+    @Test void followsOnlyDetectorsThatCanFollow() throws ParseException {
+        File base = new File(System.getenv("PWD"));
+        TestFolder folder = new TestFolder(new File(base,"lib/data/2022-12-03-01"));
+        for (DeviceFolder df : folder.getDeviceFolders()) {
+            df.setFollowing(true);
+        }
+        // Only reports anomalies once finished, so has no takeFound()
+        final AtomicInteger started = new AtomicInteger();
+        ScanDetector finishing = new ScanDetector() {
+            public Collection<Anomaly> detect(TestFolder testRun, Date startBound, Date endBound) {
+                return new DetectorEngine(this).detect(testRun, startBound, endBound);
+            }
 
-        // Iterator<Anomaly> anIter = anomalies.iterator();
-        // Anomaly an = anIter.next();
+            public String describe(Anomaly anomaly) {
+                return "";
+            }
 
+            public DetectorScan startScan(TestFolder testRun, DeviceFolder receiver, Date startBound, Date endBound) {
+                started.incrementAndGet();
+                return null;
+            }
+        };
+        DetectorFollower follower = new DetectorEngine(finishing).follow(folder, date("2022-11-29 22:00:00"));
+        assertEquals(0,follower.poll().size(),"No detector should be followed");
+        assertEquals(0,started.get(),"Detector that cannot follow should not be scanned");
+        folder.close();
     }
-}
\ No newline at end of file
+}
@@ -4,12 +4,23 @@
 
 package io.heraldprox.analysis.anomalies;
 
+import io.heraldprox.analysis.anomalies.sources.ContactLogSource;
+import io.heraldprox.analysis.anomalies.sources.StreamingContactLogSource;
+
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.SortedSet;
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 
 class ContactLogSourceTest {
     @Test void foundAllContactEventsForA40() {
@@ -44,6 +55,7 @@ class ContactLogSourceTest {
 
         next = eg2.source.nextByType(EventType.ContactRead);
         assertNull(next,"Should have ran out of read events");
+        dv.close();
     }
 
     @Test void foundAllContactEventsForA70() {
@@ -85,6 +97,7 @@ class ContactLogSourceTest {
 
         next = eg2.source.nextByType(EventType.ContactRead);
         assertNull(next,"Should have ran out of read events");
+        dv.close();
     }
 
     @Test void foundAllContactEventsForiPhoneX() {
@@ -123,5 +136,296 @@ class ContactLogSourceTest {
 
         next = eg2.source.nextByType(EventType.ContactRead);
         assertNull(next,"Should have ran out of read events");
+        dv.close();
+    }
+
+    @Test void readsEventTextInAnyOrder() {
+        File base = new File(System.getenv("PWD"));
+        File rawFolder = new File(base,"lib/data/2022-12-03-01");
+        DeviceFolder dv = new DeviceFolder(new File(rawFolder,"AndroidA40"));
+        dv.setCheckingDetections(false);
+        EventGroup eg = dv.getEventGroups().get(0);
+        eg.getSummary();
+
+        List<Event> reads = new ArrayList<Event>();
+        List<String> texts = new ArrayList<String>();
+        Event next = eg.source.firstByType(EventType.ContactRead);
+        while (null != next) {
+            reads.add(next);
+            texts.add(next.text());
+            next = eg.source.nextByType(EventType.ContactRead);
+        }
+        assertNotEquals(0,reads.size(),"Should have read events");
+        assertEquals("BLE,6F:A6:53:5A:CF:37,ql8F4g",texts.get(0),"First read event text incorrect");
+
+        // Backwards, then the first event again, must give the same text as reading forwards
+        for (int i = reads.size() - 1;i >= 0;--i) {
+            assertEquals(texts.get(i),reads.get(i).text(),"Text differs when read backwards at read " + i);
+        }
+        assertEquals(texts.get(0),reads.get(0).text(),"Text differs when re-reading first event");
+        assertEquals("",eg.source.text(0),"Header line should not be returned as an event");
+        dv.close();
+    }
+
+    @Test void providesParsedPayloadValues() {
+        File base = new File(System.getenv("PWD"));
+        File rawFolder = new File(base,"lib/data/2022-12-03-02");
+        DeviceFolder dv = new DeviceFolder(new File(rawFolder,"AndroidA40"));
+        dv.setCheckingDetections(false);
+        EventGroup eg = dv.getEventGroups().get(0);
+        eg.getSummary();
+
+        Event measure = eg.source.firstByType(EventType.ContactMeasure);
+        assertNotNull(measure,"Should have a measure event");
+        assertEquals("BLE",measure.sensor(),"Wrong sensor");
+        assertEquals("7B:AC:AC:34:E9:4A",measure.address(),"Wrong address");
+        assertEquals("RSSI:-39.0",measure.data(),"Wrong data");
+        assertEquals(-39.0,measure.rssi(),"Wrong RSSI");
+
+        Event read = eg.source.firstByType(EventType.ContactRead);
+        assertEquals("lGxWLg",read.data(),"Wrong broadcast ID");
+        assertTrue(Double.isNaN(read.rssi()),"Read events should not have an RSSI");
+
+        ContactLogSource cls = (ContactLogSource)eg.source;
+        assertEquals("2022-11-29 22:24:30.443+0000,BLE,7B:AC:AC:34:E9:4A,,2,,,,,,lGxWLg",cls.line(read.getPointer().startLine),"Wrong raw line");
+        dv.close();
+        assertEquals("lGxWLg",read.data(),"Parsed values should be held once closed");
+        assertEquals("2022-11-29 22:24:30.443+0000,BLE,7B:AC:AC:34:E9:4A,,2,,,,,,lGxWLg",cls.line(read.getPointer().startLine),"Reading a line should reopen the file");
+        dv.close();
+    }
+
+    @Test void streamsSameEventsAsInMemorySource() {
+        File base = new File(System.getenv("PWD"));
+        File contacts = new File(base,"lib/data/2022-12-03-01/AndroidA40/contacts.csv");
+        ContactLogSource memory = new ContactLogSource(contacts);
+        // A tiny window, so reads cross many window boundaries
+        StreamingContactLogSource streaming = new StreamingContactLogSource(contacts, new SymbolTable(), 7);
+        assertEquals(memory.summarise().eventCount,streaming.summarise().eventCount,"Event counts differ");
+        assertEquals(memory.summarise().types,streaming.summarise().types,"Event types differ");
+        assertNull(streaming.events(),"Streaming source should not hold all events");
+
+        List<Event> streamed = new ArrayList<Event>();
+        Event expected = memory.firstByType(EventType.ContactMeasure);
+        Event next = streaming.firstByType(EventType.ContactMeasure);
+        while (null != expected) {
+            assertNotNull(next,"Streaming source ran out of events early");
+            assertEquals(expected.occurredAt(),next.occurredAt(),"Event time differs");
+            assertEquals(expected.text(),next.text(),"Event text differs");
+            assertEquals(expected.rssi(),next.rssi(),"Event RSSI differs");
+            streamed.add(next);
+            expected = memory.nextByType(EventType.ContactMeasure);
+            next = streaming.nextByType(EventType.ContactMeasure);
+        }
+        assertNull(next,"Streaming source has extra events");
+
+        // Events from earlier windows are re-read from the file
+        assertEquals(memory.firstByType(EventType.ContactMeasure).text(),streamed.get(0).text(),"Earlier event text differs");
+        assertEquals(memory.firstByType(EventType.ContactMeasure).address(),streamed.get(0).address(),"Earlier event address differs");
+        memory.close();
+        streaming.close();
+    }
+
+    @Test void parsesInParallelSegmentsInOrder() {
+        File base = new File(System.getenv("PWD"));
+        File contacts = new File(base,"lib/data/2022-12-03-01/AndroidA70/contacts.csv");
+        ContactLogSource sequential = new ContactLogSource(contacts);
+        ContactLogSource parallel = new ContactLogSource(contacts);
+        // Small segments, so the file is split many times
+        parallel.setParallelism(8, 64 * 1024);
+
+        assertEquals(sequential.summarise().eventCount,parallel.summarise().eventCount,"Line counts differ");
+        assertEquals(sequential.summarise().types,parallel.summarise().types,"Event types differ");
+        EventList expected = sequential.events();
+        EventList actual = parallel.events();
+        assertEquals(expected.size(),actual.size(),"Event counts differ");
+        for (int i = 0;i < expected.size();++i) {
+            assertEquals(expected.occurredAt(i),actual.occurredAt(i),"Time differs at event " + i);
+            assertEquals(expected.typeAt(i),actual.typeAt(i),"Type differs at event " + i);
+            assertEquals(expected.startLineAt(i),actual.startLineAt(i),"Line differs at event " + i);
+        }
+        long last = sequential.summarise().eventCount;
+        for (long line : new long[] {1, 2, last / 2, last - 1, last}) {
+            assertEquals(sequential.text(line),parallel.text(line),"Text differs at line " + line);
+            assertEquals(sequential.line(line),parallel.line(line),"Raw line differs at line " + line);
+        }
+        sequential.close();
+        parallel.close();
+    }
+
+    @Test void loadsFromCacheUntilFileChanges() throws IOException {
+        File base = new File(System.getenv("PWD"));
+        File original = new File(base,"lib/data/2022-12-03-01/AndroidA40/contacts.csv");
+        File folder = Files.createTempDirectory("herald-test").toFile();
+        File contacts = new File(folder,"contacts.csv");
+        File cache = new File(folder,"contacts.csv.cache");
+        try {
+            Files.copy(original.toPath(), contacts.toPath());
+            try (ContactLogSource parsed = new ContactLogSource(contacts)) {
+                parsed.setCaching(true);
+                long lines = parsed.summarise().eventCount;
+                assertTrue(cache.isFile(),"Cache should have been written");
+
+                // Same size and time, but different content, so only a cached load can see the original events
+                long modified = contacts.lastModified();
+                byte[] blanked = Files.readAllBytes(contacts.toPath());
+                for (int i = blanked.length / 2;i < blanked.length;++i) {
+                    if (',' != blanked[i] && '\n' != blanked[i]) {
+                        blanked[i] = ' ';
+                    }
+                }
+                Files.write(contacts.toPath(), blanked);
+                assertTrue(contacts.setLastModified(modified),"Could not reset modified time");
+
+                try (ContactLogSource cached = new ContactLogSource(contacts, new SymbolTable())) {
+                    cached.setCaching(true);
+                    assertEquals(lines,cached.summarise().eventCount,"Line count differs from cache");
+                    assertEquals(parsed.summarise().types,cached.summarise().types,"Event types differ from cache");
+                    assertEquals(parsed.events().size(),cached.events().size(),"Event count differs from cache");
+                    for (int i = 0;i < parsed.events().size();i += 97) {
+                        assertEquals(parsed.events().occurredAt(i),cached.events().occurredAt(i),"Time differs from cache at event " + i);
+                        assertEquals(parsed.events().typeAt(i),cached.events().typeAt(i),"Type differs from cache at event " + i);
+                        long line = parsed.events().startLineAt(i);
+                        assertEquals(parsed.text(line),cached.text(line),"Text differs from cache at line " + line);
+                    }
+                }
+
+                // A changed file is parsed again
+                assertTrue(contacts.setLastModified(modified + 60000),"Could not change modified time");
+                try (ContactLogSource reparsed = new ContactLogSource(contacts, new SymbolTable())) {
+                    reparsed.setCaching(true);
+                    assertEquals(lines,reparsed.summarise().eventCount,"Changed file should have the same line count");
+                    assertNotEquals(parsed.events().size(),reparsed.events().size(),"Changed file should not be read from cache");
+                }
+            }
+        } finally {
+            cache.delete();
+            contacts.delete();
+            folder.delete();
+        }
+    }
+
+    @Test void parsesWhenCacheIsCorrupt() throws IOException {
+        File base = new File(System.getenv("PWD"));
+        File original = new File(base,"lib/data/2022-12-03-01/AndroidA40/contacts.csv");
+        File folder = Files.createTempDirectory("herald-test").toFile();
+        File contacts = new File(folder,"contacts.csv");
+        File cache = new File(folder,"contacts.csv.cache");
+        try {
+            Files.copy(original.toPath(), contacts.toPath());
+            try (ContactLogSource parsed = new ContactLogSource(contacts)) {
+                parsed.setCaching(true);
+                long lines = parsed.summarise().eventCount;
+                byte[] written = Files.readAllBytes(cache.toPath());
+
+                // Dictionary sizes too large for the file, and negative
+                for (int size : new int[] {Integer.MAX_VALUE, -1}) {
+                    ByteBuffer.wrap(written).putInt(44, size);
+                    Files.write(cache.toPath(), written);
+                    try (ContactLogSource reparsed = new ContactLogSource(contacts, new SymbolTable())) {
+                        reparsed.setCaching(true);
+                        assertEquals(lines,reparsed.summarise().eventCount,"Corrupt cache should be parsed again, with size " + size);
+                        assertEquals(parsed.events().size(),reparsed.events().size(),"Events should be parsed from the csv, with size " + size);
+                    }
+                }
+            }
+        } finally {
+            cache.delete();
+            contacts.delete();
+            folder.delete();
+        }
+    }
+
+    @Test void queriesDoNotShareAPosition() throws IOException {
+        File base = new File(System.getenv("PWD"));
+        File contacts = new File(base,"lib/data/2022-12-03-01/AndroidA40/contacts.csv");
+        EventSource[] sources = new EventSource[] {
+            new ContactLogSource(contacts),
+            new StreamingContactLogSource(contacts, new SymbolTable(), 50)
+        };
+        for (EventSource source : sources) {
+            // Everything, read alone
+            List<String> expected = new ArrayList<String>();
+            EventCursor all = source.query(EnumSet.of(EventType.ContactMeasure), Long.MIN_VALUE, Long.MAX_VALUE);
+            for (Event e = all.next();null != e;e = all.next()) {
+                expected.add(e.occurredAt() + "," + e.text());
+            }
+            assertNotEquals(0,expected.size(),"Should have measure events");
+
+            // Two cursors and the shared position, interleaved
+            EventCursor first = source.query(EnumSet.of(EventType.ContactMeasure), Long.MIN_VALUE, Long.MAX_VALUE);
+            EventCursor second = source.query(EnumSet.of(EventType.ContactMeasure), Long.MIN_VALUE, Long.MAX_VALUE);
+            source.firstByType(EventType.ContactRead);
+            for (int i = 0;i < expected.size();++i) {
+                Event a = first.next();
+                assertEquals(expected.get(i),a.occurredAt() + "," + a.text(),"First cursor wrong at " + i);
+                source.nextByType(EventType.ContactRead);
+                Event b = second.next();
+                assertEquals(expected.get(i),b.occurredAt() + "," + b.text(),"Second cursor wrong at " + i);
+            }
+            assertNull(first.next(),"First cursor should have finished");
+            assertNull(second.next(),"Second cursor should have finished");
+
+            // A time window, and all types
+            long from = 1669761000000L; // 2022-11-29 22:30:00
+            long to = 1669762800000L; // 2022-11-29 23:00:00
+            EventCursor window = source.query(null, from, to);
+            int count = 0;
+            for (Event e = window.next();null != e;e = window.next()) {
+                assertTrue(e.occurredAt() >= from && e.occurredAt() <= to,"Event outside the window");
+                count++;
+            }
+            assertNotEquals(0,count,"Should have events in the window");
+            ((Closeable)source).close();
+        }
+    }
+
+    @Test void readsLinesAppendedToFile() throws IOException {
+        File base = new File(System.getenv("PWD"));
+        File original = new File(base,"lib/data/2022-12-03-01/AndroidA40/contacts.csv");
+        File folder = Files.createTempDirectory("herald-test").toFile();
+        File contacts = new File(folder,"contacts.csv");
+        try {
+            byte[] all = Files.readAllBytes(original.toPath());
+            // Stop part way through a line, as if it was still being written
+            int written = all.length / 3;
+            Files.write(contacts.toPath(), Arrays.copyOf(all, written));
+            try (ContactLogSource following = new ContactLogSource(contacts)) {
+                following.setFollowing(true);
+                long lines = following.summarise().eventCount;
+                assertNotEquals(0,lines,"Should read the complete lines");
+
+                int added = 0;
+                while (written < all.length) {
+                    int more = Math.min(all.length - written, all.length / 5);
+                    Files.write(contacts.toPath(), Arrays.copyOfRange(all, written, written + more), StandardOpenOption.APPEND);
+                    written += more;
+                    added += following.readAppended();
+                }
+                if ('\n' != all[all.length - 1]) {
+                    // The last line is only read once it is known to be complete
+                    Files.write(contacts.toPath(), new byte[] {'\n'}, StandardOpenOption.APPEND);
+                    added += following.readAppended();
+                }
+                assertNotEquals(0,added,"Appended lines should add events");
+                assertEquals(0,following.readAppended(),"Nothing more was appended");
+
+                ContactLogSource whole = new ContactLogSource(original);
+                assertEquals(whole.summarise().eventCount,following.summarise().eventCount,"Line count differs once all appended");
+                assertEquals(whole.summarise().types,following.summarise().types,"Event types differ once all appended");
+                assertEquals(whole.events().size(),following.events().size(),"Event count differs once all appended");
+                for (int i = 0;i < whole.events().size();i += 37) {
+                    assertEquals(whole.events().occurredAt(i),following.events().occurredAt(i),"Time differs at event " + i);
+                    assertEquals(whole.events().typeAt(i),following.events().typeAt(i),"Type differs at event " + i);
+                    long line = whole.events().startLineAt(i);
+                    assertEquals(line,following.events().startLineAt(i),"Line differs at event " + i);
+                    assertEquals(whole.text(line),following.text(line),"Text differs at line " + line);
+                    assertEquals(whole.line(line),following.line(line),"Raw line differs at line " + line);
+                }
+                whole.close();
+            }
+        } finally {
+            contacts.delete();
+            folder.delete();
+        }
     }
-}
\ No newline at end of file
+}
@@ -53,6 +53,8 @@ class CorrectionTest {
         assertEquals(2,summary.eventCount,"Android A40 detection event count is wrong");
         assertEquals(1,summary.types.size(),"Android A40 detection has wrong type count");
         assertEquals(EventType.DetectionBroadcastIdLoggedBefore,summary.types.first(),"Wrong event type recorded");
+        folder.close();
+        dv.close();
     }
 
     @Test void correlatesAllDevicesWithIDs() {
@@ -201,5 +203,6 @@ class CorrectionTest {
         // assertNotNull(dev2ByAddressFromDev1,"Couldn't find A70 in A40 contacts data");
         TestDevice dev2ByAddressFromDev3 = c.getDeviceByAddress("F47B4BC0-086E-48CE-99F2-AC5CA64D6D91");
         assertNotNull(dev2ByAddressFromDev3,"Couldn't find A70 in iPhoneX contacts data");
+        folder.close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,118 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import io.heraldprox.analysis.anomalies.detection.DetectionRateDetection;
+import io.heraldprox.analysis.anomalies.detection.RssiGapDetection;
+import io.heraldprox.analysis.anomalies.synthetic.GroundTruth;
+import io.heraldprox.analysis.anomalies.synthetic.TestRunGenerator;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+class DetectionRateTest {
+    Date date(String text) throws ParseException {
+        // Logged in UTC
+        SimpleDateFormat utc = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.UK);
+        utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return utc.parse(text);
+    }
+
+    @Test void findsDropsTooShortToBeGaps() throws IOException {
+        File folder = Files.createTempDirectory("herald-synthetic").toFile();
+        try {
+            TestRunGenerator generator = new TestRunGenerator();
+            generator.setDevices(3);
+            generator.setDurationMillis(6 * 60 * 60 * 1000);
+            generator.setRandomGaps(0, 0, 0);
+            generator.addGap(0, 1, 2 * 60 * 60 * 1000, 15 * 60 * 1000);
+            GroundTruth truth = generator.write(folder);
+            GroundTruth.InjectedGap gap = truth.getGaps().get(0);
+
+            try (TestFolder test = new TestFolder(folder)) {
+                Correlator c = new Correlator(test.getDeviceFolders());
+                Date startDate = new Date(truth.getStart());
+                Date endDate = new Date(truth.getEnd());
+                assertEquals(0,new RssiGapDetection(c, 20 * 60 * 1000).detect(test, startDate, endDate).size(),"Gap should be too short for gap detection");
+
+                Collection<Anomaly> found = new DetectionRateDetection(c, 10 * 60 * 1000, 0.5).detect(test, startDate, endDate);
+                assertEquals(1,found.size(),"Should only find the gap injected: " + found);
+                Anomaly an = found.iterator().next();
+                assertEquals(gap.receiver,an.receiver.getDeviceTypeString(),"Wrong receiver");
+                assertEquals(gap.transmitter,an.transmitter.getDeviceTypeString(),"Wrong transmitter");
+                assertTrue(an.from.getTime() <= gap.from && an.to.getTime() >= gap.to,"Anomaly " + an + " should cover the gap " + gap);
+                // The first flagged window ends within the gap, and the last starts within it
+                assertTrue(an.to.getTime() - an.from.getTime() < gap.durationMillis() + 2 * 10 * 60 * 1000,"Anomaly " + an + " should not be longer than the windows around the gap");
+                assertTrue(an.toString().contains("per minute"),"Description should give the rates: " + an);
+
+                DetectionRateDetection.RateAnomaly rate = (DetectionRateDetection.RateAnomaly)an;
+                assertTrue(rate.baselineRate > 10,"Readings are every 4 seconds on average: " + rate.baselineRate);
+                assertTrue(rate.lowestRate < rate.baselineRate / 2,"Lowest window should be below the threshold: " + rate.lowestRate);
+            }
+        } finally {
+            TestRunGenerator.delete(folder);
+        }
+    }
+
+    @Test void joinsOverlappingWindows() throws IOException {
+        File folder = Files.createTempDirectory("herald-synthetic").toFile();
+        try {
+            TestRunGenerator generator = new TestRunGenerator();
+            generator.setDevices(2);
+            generator.setDurationMillis(4 * 60 * 60 * 1000);
+            generator.setRandomGaps(0, 0, 0);
+            // Readings between the gaps fill enough of some windows for them not to be flagged, but not those either side
+            generator.addGap(0, 1, 2 * 60 * 60 * 1000, 7 * 60 * 1000);
+            generator.addGap(0, 1, 2 * 60 * 60 * 1000 + 13 * 60 * 1000, 7 * 60 * 1000);
+            GroundTruth truth = generator.write(folder);
+            List<GroundTruth.InjectedGap> gaps = truth.getGaps();
+
+            try (TestFolder test = new TestFolder(folder)) {
+                Collection<Anomaly> found = new DetectionRateDetection(new Correlator(test.getDeviceFolders()), 10 * 60 * 1000, 0.5).detect(test, new Date(truth.getStart()), new Date(truth.getEnd()));
+                assertEquals(1,found.size(),"Windows overlapping both gaps should be joined: " + found);
+                Anomaly an = found.iterator().next();
+                assertTrue(an.from.getTime() <= gaps.get(0).from && an.to.getTime() >= gaps.get(1).to,"Anomaly " + an + " should cover both gaps " + gaps);
+            }
+        } finally {
+            TestRunGenerator.delete(folder);
+        }
+    }
+
+    @Test void rejectsWindowsTooLong() {
+        assertThrows(IllegalArgumentException.class,() -> new DetectionRateDetection(null, Long.MAX_VALUE, 0.5),"Window minutes should fit in an int");
+    }
+
+    @Test void sinkGetsSameAnomaliesAsDetect() throws ParseException {
+        File base = new File(System.getenv("PWD"));
+        TestFolder folder = new TestFolder(new File(base,"lib/data/2022-12-03-02"));
+        DetectionRateDetection detector = new DetectionRateDetection(new Correlator(folder.getDeviceFolders()), 10 * 60 * 1000, 0.5);
+        Date startDate = date("2022-11-29 22:00:00");
+        Date endDate = date("2022-12-03 00:00:00");
+
+        List<String> returned = new ArrayList<String>();
+        for (Anomaly an : detector.detect(folder, startDate, endDate)) {
+            assertTrue(an.from.getTime() >= startDate.getTime() && an.to.getTime() <= endDate.getTime(),"Anomaly should be within the bounds: " + an);
+            assertTrue(an.from.before(an.to),"Anomaly should have a length: " + an);
+            returned.add(an.toString());
+        }
+        assertNotEquals(0,returned.size(),"Detection rates should drop over several days");
+        final List<String> sunk = new ArrayList<String>();
+        detector.detect(folder, startDate, endDate, an -> sunk.add(an.toString()));
+        assertEquals(returned,sunk,"Sink should be given the same anomalies as detect() returns");
+        folder.close();
+    }
+}
@@ -11,13 +11,17 @@ import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 
 class DevicesTest {
     @Test void listsInvalidFolder() {
         File rawFolder = new File("wibble");
         TestFolder folder = new TestFolder(rawFolder);
         assertDoesNotThrow(folder::getDeviceFolders);
+        folder.close();
     }
 
     @Test void listsDevicesInFolder() {
@@ -26,6 +30,7 @@ class DevicesTest {
         TestFolder folder = new TestFolder(rawFolder);
         List<DeviceFolder> folders = folder.getDeviceFolders();
         assertEquals(3, folders.size(), "returned wrong device folder count from PWD: " + System.getenv("PWD"));
+        folder.close();
     }
 
     @Test void allDevicesHaveEventGroups() {
@@ -39,6 +44,7 @@ class DevicesTest {
             
             assertNotEquals(0, device.getEventGroups().size(), "haven't found any events for device: " + device.name);
         }
+        folder.close();
     }
 
     @Test void devicesHaveCorrectContactLogCount() {
@@ -95,5 +101,43 @@ class DevicesTest {
             }
         }
         assertEquals(3,eventGroupCount,"Expected 3 event groups from devices");
+        folder.close();
+    }
+
+    @Test void loadsAllFoldersInParallel() {
+        File base = new File(System.getenv("PWD"));
+        File rawFolder = new File(base,"lib/data/2022-12-03-01");
+        TestFolder folder = new TestFolder(rawFolder);
+        AtomicInteger progress = new AtomicInteger(0);
+        TestFolder.LoadReport report = folder.load(4, (df, completed, total) -> {
+            progress.incrementAndGet();
+            assertEquals(3,total,"Wrong total in progress report");
+        });
+        assertTrue(report.isSuccessful(),"All folders should load");
+        assertEquals(3,progress.get(),"Should be told about every folder");
+        for (DeviceFolder device : folder.getDeviceFolders()) {
+            assertNotEquals("",device.getDevice().getBroadcastId(),"Device should have been read: " + device.name);
+            for (EventGroup eg : device.getEventGroups()) {
+                assertNotEquals(0,eg.getSummary().eventCount,"Events should have been read for " + device.name);
+            }
+        }
+        folder.close();
+    }
+
+    @Test void reportsFailuresPerFolder() throws IOException {
+        File rawFolder = Files.createTempDirectory("herald-test").toFile();
+        File emptyDevice = new File(rawFolder,"EmptyPhone");
+        assertTrue(emptyDevice.mkdir(),"Could not create test device folder");
+        try {
+            try (TestFolder folder = new TestFolder(rawFolder)) {
+                TestFolder.LoadReport report = folder.load(2, null);
+                assertFalse(report.isSuccessful(),"Missing files should be reported");
+                assertEquals(1,report.failures.size(),"Should be one failed folder");
+                assertEquals(2,report.failures.get(folder.getDeviceFolders().get(0)).size(),"Both contacts and detections should fail");
+            }
+        } finally {
+            emptyDevice.delete();
+            rawFolder.delete();
+        }
     }
 }
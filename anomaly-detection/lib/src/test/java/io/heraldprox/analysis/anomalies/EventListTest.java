@@ -0,0 +1,114 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import io.heraldprox.analysis.anomalies.columns.LongColumn;
+import io.heraldprox.analysis.anomalies.sources.DetectionLogSource;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+
+class EventListTest {
+    @Test void storesEventsAcrossChunks() {
+        EventList list = new EventList();
+        int count = LongColumn.CHUNK_SIZE * 2 + 5;
+        for (int i = 0;i < count;++i) {
+            list.add(null, 1000L * i, (0 == i % 2 ? EventType.ContactRead : EventType.ContactMeasure), i + 1, i + 1);
+        }
+        assertEquals(count,list.size(),"Wrong event count");
+        for (int i = 0;i < count;i += 997) {
+            assertEquals(1000L * i,list.occurredAt(i),"Wrong time at " + i);
+            assertEquals(i + 1,list.startLineAt(i),"Wrong start line at " + i);
+            assertEquals((0 == i % 2 ? EventType.ContactRead : EventType.ContactMeasure),list.typeAt(i),"Wrong type at " + i);
+        }
+        Event last = list.atIndex(count - 1);
+        assertNotNull(last,"Last event should exist");
+        assertEquals(1000L * (count - 1),last.occurredAt(),"Wrong time for last event view");
+        assertNull(list.atIndex(count),"Should be no event past the end");
+        assertEquals(count,list.getEvents().size(),"Collection view has wrong size");
+    }
+
+    @Test void keepsSourcePerEventWhenMixed() {
+        File base = new File(System.getenv("PWD"));
+        File rawFolder = new File(base,"lib/data/2022-12-03-02");
+        DetectionLogSource first = new DetectionLogSource(new File(rawFolder,"AndroidA40/detection.csv"), new TestDevice());
+        DetectionLogSource second = new DetectionLogSource(new File(rawFolder,"AndroidA70/detection.csv"), new TestDevice());
+
+        EventList list = new EventList();
+        list.add(first.first());
+        list.add(second.first());
+        list.add(first.next());
+
+        assertEquals(3,list.size(),"Wrong event count");
+        assertSame(first,list.sourceAt(0),"Wrong source for first event");
+        assertSame(second,list.sourceAt(1),"Wrong source for second event");
+        assertSame(first,list.sourceAt(2),"Wrong source for third event");
+        assertEquals("lGxWLg",list.atIndex(0).text(),"Wrong text for first event");
+        assertEquals("ZqFdag",list.atIndex(1).text(),"Wrong text for second event");
+        assertEquals("ql8F4g",list.atIndex(2).text(),"Wrong text for third event");
+    }
+
+    @Test void indexesEventsByType() {
+        EventList list = new EventList();
+        EventType[] pattern = new EventType[]{EventType.ContactDetected, EventType.ContactMeasure, EventType.ContactMeasure, EventType.ContactRead};
+        for (int i = 0;i < 40;++i) {
+            list.add(null, i, pattern[i % pattern.length], i + 1, i + 1);
+        }
+        assertEquals(20,list.countOfType(EventType.ContactMeasure),"Wrong measure count");
+        assertEquals(0,list.countOfType(EventType.ContactShare),"Should be no share events");
+
+        int[] reads = list.indexesOfType(EventType.ContactRead);
+        assertEquals(10,reads.length,"Wrong read count");
+        for (int i = 0;i < reads.length;++i) {
+            assertEquals(i * 4 + 3,reads[i],"Wrong read index");
+        }
+        assertEquals(0,list.indexesOfType(EventType.ContactShare).length,"Should be no share indexes");
+
+        // Sequential and out of order lookups
+        assertEquals(1,list.nextIndexOfType(EventType.ContactMeasure,0),"First measure wrong");
+        assertEquals(2,list.nextIndexOfType(EventType.ContactMeasure,2),"Second measure wrong");
+        assertEquals(5,list.nextIndexOfType(EventType.ContactMeasure,3),"Third measure wrong");
+        assertEquals(1,list.nextIndexOfType(EventType.ContactMeasure,1),"Going backwards should work");
+        assertEquals(39,list.nextIndexOfType(EventType.ContactRead,36),"Last read wrong");
+        assertEquals(40,list.nextIndexOfType(EventType.ContactRead,40),"Past the last read should return size");
+        assertEquals(40,list.nextIndexOfType(EventType.ContactShare,0),"Missing type should return size");
+    }
+
+    @Test void seeksByTimeEvenOutOfOrder() {
+        EventList list = new EventList();
+        for (int i = 0;i < 1000;++i) {
+            long time = i * 10;
+            if (500 == i) {
+                time = 50; // clock went backwards
+            } else if (700 == i) {
+                time = 99999; // and forwards
+            }
+            list.add(null, time, EventType.ContactMeasure, i + 1, i + 1);
+        }
+        assertEquals(0,list.previousIndexOfType(EventType.ContactMeasure,1),"Wrong previous event");
+        assertEquals(-1,list.previousIndexOfType(EventType.ContactMeasure,0),"Should be no event before the first");
+
+        for (long time = -5;time < 10100;time += 7) {
+            // Brute force answers
+            int first = 0;
+            while (first < list.size() && list.occurredAt(first) < time) {
+                ++first;
+            }
+            int end = list.size();
+            while (end > 0 && list.occurredAt(end - 1) > time) {
+                --end;
+            }
+            assertEquals(first,list.firstIndexAtOrAfter(time),"Wrong first index at time " + time);
+            assertEquals(end,list.endIndexAfter(time),"Wrong end index at time " + time);
+        }
+        assertEquals(list.size(),list.endIndexAfter(99999),"Last event is at the end time");
+
+        // The index follows later additions
+        list.add(null, 200000, EventType.ContactMeasure, 1001, 1001);
+        assertEquals(1000,list.firstIndexAtOrAfter(100000),"Index not rebuilt after add");
+    }
+}
@@ -0,0 +1,77 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import io.heraldprox.analysis.anomalies.detection.RssiGapDetection;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+class MetricsTest {
+    Date date(String text) throws ParseException {
+        // Logged in UTC
+        SimpleDateFormat utc = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.UK);
+        utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return utc.parse(text);
+    }
+
+    @Test void recordsEachStagePerDevice() throws ParseException, IOException {
+        File base = new File(System.getenv("PWD"));
+        TestFolder folder = new TestFolder(new File(base,"lib/data/2022-12-03-02"));
+        Metrics metrics = new Metrics();
+        folder.setMetrics(metrics);
+        Correlator c = new Correlator(folder.getDeviceFolders());
+        c.setMetrics(metrics);
+        DetectorEngine engine = new DetectorEngine(new RssiGapDetection(c, 20 * 60 * 1000));
+        engine.setMetrics(metrics);
+        Date startDate = date("2022-11-30 00:00:00");
+        Date endDate = date("2022-12-03 00:00:00");
+
+        int found = engine.detect(folder, startDate, endDate).size();
+        assertNotEquals(0,found,"Should be gaps over several days");
+
+        long anomalies = 0;
+        for (DeviceFolder df : folder.getDeviceFolders()) {
+            String device = df.getFolder().getName();
+            Metrics.Stage parse = metrics.stage("contacts.parse", device);
+            assertEquals(1,parse.getCalls(),"Each contacts.csv should be parsed once: " + device);
+            assertNotEquals(0,parse.getRows(),"Rows parsed should be counted: " + device);
+            assertEquals(parse.getRows(),parse.getEvents(),"Every contacts.csv row is an event: " + device);
+            assertTrue(parse.getBytes() > parse.getRows(),"Bytes read should be counted: " + device);
+            assertTrue(parse.getWallNanos() > 0,"Parsing should take some time: " + device);
+
+            Metrics.Stage scan = metrics.stage("scan", device);
+            assertEquals(1,scan.getCalls(),"Each device should be scanned once: " + device);
+            anomalies += scan.getAnomalies();
+        }
+        assertEquals(found,anomalies,"Scan stages should count every anomaly found");
+        assertEquals(1,metrics.stage("correlate.index").getCalls(),"Address index should be built once");
+
+        StringWriter json = new StringWriter();
+        metrics.writeJson(json);
+        assertTrue(json.toString().startsWith("{\"stages\":["),"JSON should list the stages");
+        assertTrue(json.toString().contains("\"stage\":\"contacts.parse\""),"JSON should include parsing");
+        folder.close();
+    }
+
+    @Test void noopRecordsNothing() {
+        Metrics.Stage stage = Metrics.NOOP.stage("contacts.parse", "device");
+        Metrics.Timer timer = stage.start();
+        stage.addRows(10);
+        timer.stop();
+        assertEquals(0,stage.getRows(),"NOOP should not count");
+        assertEquals(0,stage.getCalls(),"NOOP should not time");
+        assertTrue(Metrics.NOOP.getStages().isEmpty(),"NOOP should have no stages");
+    }
+}
@@ -0,0 +1,75 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+class RssiSeriesTest {
+    @Test void matrixHoldsEveryLinkedReading() {
+        File base = new File(System.getenv("PWD"));
+        TestFolder folder = new TestFolder(new File(base,"lib/data/2022-12-03-02"));
+        Correlator c = new Correlator(folder.getDeviceFolders());
+
+        RssiSeriesMatrix matrix = c.getRssiSeries();
+        assertSame(matrix,c.getRssiSeries(),"Series should be built once and held by the Correlator");
+        assertEquals(folder.getDeviceFolders().size(),matrix.getDevices().size(),"Should be a row per device");
+        assertNotEquals(0,matrix.size(),"Devices should have read each other's RSSI");
+
+        // The same readings, found the slow way
+        for (DeviceFolder df : folder.getDeviceFolders()) {
+            TestDevice receiver = df.getDevice();
+            for (DeviceFolder tdf : folder.getDeviceFolders()) {
+                TestDevice transmitter = tdf.getDevice();
+                List<Long> times = new ArrayList<Long>();
+                List<Float> values = new ArrayList<Float>();
+                for (EventGroup eg : df.getEventGroups()) {
+                    if (!eg.getSummary().types.contains(EventType.ContactMeasure)) {
+                        continue;
+                    }
+                    for (Event e : eg.source.events().getEvents()) {
+                        if (EventType.ContactMeasure == e.type() && receiver != transmitter &&
+                            transmitter == c.getDeviceByAddress(e.address()) && !Double.isNaN(e.rssi())) {
+                            times.add(e.occurredAt());
+                            values.add((float)e.rssi());
+                        }
+                    }
+                }
+
+                RssiSeries series = matrix.get(receiver, transmitter);
+                assertNotNull(series,"Every pair of devices in the test should have a series");
+                assertEquals(times.size(),series.size(),"Wrong reading count for " + transmitter.getDeviceTypeString() + " by " + receiver.getDeviceTypeString());
+                for (int i = 0;i < series.size();++i) {
+                    assertEquals(times.get(i).longValue(),series.timeAt(i),"Reading " + i + " has the wrong time");
+                    assertEquals(values.get(i).floatValue(),series.rssiAt(i),"Reading " + i + " has the wrong RSSI");
+                }
+            }
+        }
+        folder.close();
+    }
+
+    @Test void findsReadingsByTime() {
+        File base = new File(System.getenv("PWD"));
+        TestFolder folder = new TestFolder(new File(base,"lib/data/2022-12-03-01"));
+        Correlator c = new Correlator(folder.getDeviceFolders());
+
+        RssiSeries series = c.getRssiSeries().getAll().get(0);
+        assertTrue(series.size() > 2,"Should be several readings");
+        for (int i = 1;i < series.size();++i) {
+            assertTrue(series.timeAt(i - 1) <= series.timeAt(i),"Readings should be in time order");
+        }
+        assertEquals(0,series.indexAtOrAfter(Long.MIN_VALUE),"Every reading is after the start of time");
+        assertEquals(series.size(),series.indexAtOrAfter(series.timeAt(series.size() - 1) + 1),"No reading after the last");
+        int mid = series.size() / 2;
+        int found = series.indexAtOrAfter(series.timeAt(mid));
+        assertEquals(series.timeAt(mid),series.timeAt(found),"Should find a reading at that time");
+        assertTrue(0 == found || series.timeAt(found - 1) < series.timeAt(mid),"Should find the first reading at that time");
+        folder.close();
+    }
+}
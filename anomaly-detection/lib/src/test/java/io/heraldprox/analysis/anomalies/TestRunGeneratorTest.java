@@ -0,0 +1,57 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import io.heraldprox.analysis.anomalies.detection.RssiGapDetection;
+import io.heraldprox.analysis.anomalies.synthetic.GroundTruth;
+import io.heraldprox.analysis.anomalies.synthetic.TestRunGenerator;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+class TestRunGeneratorTest {
+    @Test void gapDetectionFindsInjectedGaps() throws IOException {
+        File folder = Files.createTempDirectory("herald-synthetic").toFile();
+        try {
+            TestRunGenerator generator = new TestRunGenerator();
+            generator.setDevices(4);
+            generator.setDurationMillis(12 * 60 * 60 * 1000);
+            generator.setRandomGaps(2.0, 25 * 60 * 1000, 60 * 60 * 1000);
+            // Across the end of the test, and too short to be reported
+            generator.addGap(0, 1, 11 * 60 * 60 * 1000, 2 * 60 * 60 * 1000);
+            generator.addGap(2, 3, 60 * 60 * 1000, 5 * 60 * 1000);
+            GroundTruth truth = generator.write(folder);
+            assertTrue(new File(folder,"ground-truth.csv").exists(),"Ground truth should be written with the test");
+
+            List<String> expected = new ArrayList<String>();
+            for (GroundTruth.InjectedGap gap : truth.getGapsLongerThan(20 * 60 * 1000)) {
+                expected.add(gap.receiver + " " + gap.transmitter + " " + gap.from + " " + gap.to);
+            }
+            assertTrue(expected.size() > 4,"Should be random gaps as well as those added: " + expected);
+            assertTrue(truth.getGapsLongerThan(20 * 60 * 1000).size() < truth.getGaps().size(),"Short gap should be in the ground truth but not reportable");
+
+            try (TestFolder test = new TestFolder(folder)) {
+                assertEquals(4,test.getDeviceFolders().size(),"Should be a folder per device");
+                List<String> found = new ArrayList<String>();
+                for (Anomaly an : new RssiGapDetection(new Correlator(test.getDeviceFolders()), 20 * 60 * 1000).detect(test, new Date(truth.getStart()), new Date(truth.getEnd()))) {
+                    found.add(an.receiver.getDeviceTypeString() + " " + an.transmitter.getDeviceTypeString() + " " + an.from.getTime() + " " + an.to.getTime());
+                }
+                Collections.sort(expected);
+                Collections.sort(found);
+                assertEquals(expected,found,"Should find exactly the gaps injected");
+            }
+        } finally {
+            TestRunGenerator.delete(folder);
+        }
+    }
+}
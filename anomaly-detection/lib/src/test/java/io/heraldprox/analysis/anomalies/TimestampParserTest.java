@@ -0,0 +1,55 @@
+//  Copyright 2023 Herald Project Contributors
+//  SPDX-License-Identifier: Apache-2.0
+//
+
+package io.heraldprox.analysis.anomalies;
+
+import io.heraldprox.analysis.anomalies.sources.TimestampParser;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+class TimestampParserTest {
+    @Test void matchesSimpleDateFormat() throws Exception {
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.UK);
+        formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+        TimestampParser parser = new TimestampParser();
+        String[] times = new String[] {
+            "2022-11-29 22:21:56.552+0000",
+            "2022-11-29 22:21:57",
+            "2022-11-30 00:00:00.001+0000",
+            "2022-11-29 23:59:59.999+0000",
+            "2024-02-29 12:00:00",
+            "1970-01-01 00:00:00",
+            "1969-12-31 23:59:59",
+            "2100-03-01 01:02:03"
+        };
+        for (String time : times) {
+            long expected = formatter.parse(time).getTime();
+            assertEquals(expected,parser.parse(time,0),"Wrong time for " + time);
+            byte[] bytes = ("x," + time).getBytes(StandardCharsets.UTF_8);
+            assertEquals(expected,parser.parse(bytes,2,bytes.length - 2),"Wrong time from bytes for " + time);
+        }
+    }
+
+    @Test void rejectsOtherText() {
+        TimestampParser parser = new TimestampParser();
+        String[] invalid = new String[] {
+            "",
+            "2022-11-29",
+            "2022-11-29T22:21:56",
+            "2022-13-29 22:21:56",
+            "2022-02-29 22:21:56",
+            "2022-11-29 24:00:00",
+            "20x2-11-29 22:21:56"
+        };
+        for (String time : invalid) {
+            assertEquals(TimestampParser.INVALID,parser.parse(time,0),"Should not parse '" + time + "'");
+        }
+    }
+}